@@ -0,0 +1,49 @@
+package com.levykin.widget.benchmark;
+
+import com.levykin.widget.model.AreaFilter;
+import com.levykin.widget.model.Widget;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Slice;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static com.levykin.widget.benchmark.WidgetStoreState.CANVAS_SIZE;
+import static com.levykin.widget.benchmark.WidgetStoreState.PAGE_SIZE;
+
+/** Paged listing through the service, plain and filtered by a viewport. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WidgetReadBenchmark {
+
+  // A tenth of the canvas side, so a viewport holds about a hundredth of the widgets
+  private static final int VIEWPORT_SIZE = CANVAS_SIZE / 10;
+
+  @Benchmark
+  public Slice<Widget> getPage(WidgetStoreState store) {
+    int page = ThreadLocalRandom.current().nextInt(store.storeSize / PAGE_SIZE);
+    return store.service.getAll(PageRequest.of(page, PAGE_SIZE), null);
+  }
+
+  @Benchmark
+  public Slice<Widget> getFirstPageInArea(WidgetStoreState store) {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    AreaFilter area =
+        new AreaFilter(
+            random.nextInt(CANVAS_SIZE - VIEWPORT_SIZE),
+            random.nextInt(CANVAS_SIZE - VIEWPORT_SIZE),
+            VIEWPORT_SIZE,
+            VIEWPORT_SIZE);
+    return store.service.getAll(PageRequest.of(0, PAGE_SIZE), area);
+  }
+}
@@ -0,0 +1,71 @@
+package com.levykin.widget.benchmark;
+
+import com.levykin.widget.WidgetApplication;
+import com.levykin.widget.dao.WidgetDao;
+import com.levykin.widget.model.Widget;
+import com.levykin.widget.service.WidgetService;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Application context with a store of the given profile and size. The store is filled with
+ * widgets with dense indexes from 0 and spread randomly over a square canvas.
+ */
+@State(Scope.Benchmark)
+public class WidgetStoreState {
+
+  static final int CANVAS_SIZE = 10_000;
+
+  static final int PAGE_SIZE = 100;
+
+  @Param({"java-in-memory-storage", "h2-in-memory-storage"})
+  public String storage;
+
+  @Param({"1000", "100000", "1000000"})
+  public int storeSize;
+
+  WidgetService service;
+
+  private ConfigurableApplicationContext context;
+
+  @Setup(Level.Trial)
+  public void startStore() {
+    context =
+        new SpringApplicationBuilder(WidgetApplication.class)
+            .run(
+                "--spring.profiles.active=" + storage,
+                "--spring.main.web-application-type=none",
+                "--widget-application.max-page-size=" + PAGE_SIZE);
+    // Filling the store directly, the service would only add the index lookup to every add
+    WidgetDao dao = context.getBean(WidgetDao.class);
+    for (int index = 0; index < storeSize; index++) {
+      Widget widget = randomWidget();
+      widget.setIndex(index);
+      dao.add(widget);
+    }
+    service = context.getBean(WidgetService.class);
+  }
+
+  @TearDown(Level.Trial)
+  public void stopStore() {
+    context.close();
+  }
+
+  Widget randomWidget() {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    Widget widget = new Widget();
+    widget.setX(random.nextInt(CANVAS_SIZE));
+    widget.setY(random.nextInt(CANVAS_SIZE));
+    widget.setWidth(10f + random.nextInt(90));
+    widget.setHeight(10f + random.nextInt(90));
+    return widget;
+  }
+}
@@ -0,0 +1,43 @@
+package com.levykin.widget.benchmark;
+
+import com.levykin.widget.model.Widget;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Widget creation through the service. The store grows during a run, inserts below the top keep
+ * it dense, so every insert shifts all widgets above its index.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WidgetWriteBenchmark {
+
+  @Benchmark
+  public long createOnTop(WidgetStoreState store) {
+    return store.service.create(store.randomWidget());
+  }
+
+  @Benchmark
+  public long createAtBottom(WidgetStoreState store) {
+    Widget widget = store.randomWidget();
+    widget.setIndex(0);
+    return store.service.create(widget);
+  }
+
+  @Benchmark
+  public long createInMiddle(WidgetStoreState store) {
+    Widget widget = store.randomWidget();
+    widget.setIndex(store.storeSize / 2);
+    return store.service.create(widget);
+  }
+}
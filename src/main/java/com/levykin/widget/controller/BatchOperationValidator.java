@@ -0,0 +1,40 @@
+package com.levykin.widget.controller;
+
+import com.levykin.widget.model.BatchOperation;
+import com.levykin.widget.model.Widget;
+
+import javax.validation.ConstraintViolation;
+import javax.validation.ConstraintViolationException;
+import javax.validation.Validator;
+import java.util.Set;
+
+/** Validates an operation, and then its widget by the group of the operation type. */
+final class BatchOperationValidator {
+
+  private final Validator validator;
+
+  BatchOperationValidator(Validator validator) {
+    this.validator = validator;
+  }
+
+  void validate(BatchOperation operation) {
+    Set<ConstraintViolation<BatchOperation>> violations = validator.validate(operation);
+    if (violations.isEmpty()) {
+      violations = validator.validate(operation, getValidationGroup(operation.getType()));
+    }
+    if (!violations.isEmpty()) {
+      throw new ConstraintViolationException(violations);
+    }
+  }
+
+  private static Class<?> getValidationGroup(BatchOperation.Type type) {
+    switch (type) {
+      case CREATE:
+        return Widget.Creation.class;
+      case UPDATE:
+        return Widget.Update.class;
+      default:
+        return BatchOperation.Deletion.class;
+    }
+  }
+}
@@ -0,0 +1,54 @@
+package com.levykin.widget.controller;
+
+import com.levykin.widget.service.WidgetService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+import org.springframework.util.DigestUtils;
+import org.springframework.web.context.request.ServletWebRequest;
+
+import javax.servlet.http.HttpServletRequest;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Tags responses and answers conditional requests with 304 Not Modified while the tag stays the
+ * same. A tag stands for a representation, so it covers the query, the requested fields included,
+ * and the Accept header, which picks the format. The fields are checked first, so an invalid
+ * request is never answered as not modified.
+ */
+@Profile("!reactive-web")
+@Component
+class ConditionalRequests {
+
+  // Versions start from zero with every start, so tags of different runs differ by this time
+  private final String storeTagPrefix = Long.toHexString(System.currentTimeMillis()) + "-";
+
+  @Autowired private WidgetService service;
+
+  @Autowired private WidgetFields widgetFields;
+
+  // Called before the widgets are read, so the tag is never newer than the response
+  boolean checkStoreNotModified(ServletWebRequest request) {
+    String version = Long.toHexString(service.getVersion());
+    // Only informative, since a second is too coarse to tell writes apart
+    request.getResponse().setDateHeader(HttpHeaders.LAST_MODIFIED, service.getLastModified());
+    return checkNotModified(request, storeTagPrefix + version);
+  }
+
+  boolean checkNotModified(ServletWebRequest request, String valuesTag) {
+    HttpServletRequest servletRequest = request.getRequest();
+    widgetFields.parse(servletRequest.getParameter(WidgetFields.PARAMETER));
+    request.getResponse().addHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+    String representation =
+        servletRequest.getRequestURI()
+            + '?'
+            + servletRequest.getQueryString()
+            + '\n'
+            + request.getHeader(HttpHeaders.ACCEPT);
+    return request.checkNotModified(
+        valuesTag
+            + "-"
+            + DigestUtils.md5DigestAsHex(representation.getBytes(StandardCharsets.UTF_8)));
+  }
+}
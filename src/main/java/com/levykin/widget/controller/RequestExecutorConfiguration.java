@@ -0,0 +1,56 @@
+package com.levykin.widget.controller;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ConcurrentTaskExecutor;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs requests, and so the storage calls they make, on a dedicated executor instead of the
+ * Tomcat worker pool. The executor starts a virtual thread per task where the JDK has them, so a
+ * request blocked on the storage takes no platform thread, and is a bounded pool otherwise.
+ */
+@ConditionalOnProperty(name = "widget-application.execution.mode", havingValue = "executor")
+@Configuration
+class RequestExecutorConfiguration implements WebMvcConfigurer {
+
+  @Value("${widget-application.execution.max-threads:200}")
+  private int maxThreads;
+
+  @Bean(destroyMethod = "shutdown")
+  ExecutorService requestExecutor() {
+    // Virtual threads are there from Java 21, the application is built for Java 8
+    try {
+      Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) factory.invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return Executors.newFixedThreadPool(maxThreads, namedThreads());
+    }
+  }
+
+  @Bean
+  TomcatProtocolHandlerCustomizer<?> requestExecutorCustomizer(ExecutorService requestExecutor) {
+    return protocolHandler -> protocolHandler.setExecutor(requestExecutor);
+  }
+
+  // Streamed responses are written by async tasks, which go to the same executor
+  @Override
+  public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+    configurer.setTaskExecutor(new ConcurrentTaskExecutor(requestExecutor()));
+  }
+
+  private static ThreadFactory namedThreads() {
+    AtomicInteger count = new AtomicInteger();
+    return task -> new Thread(task, "widget-request-" + count.incrementAndGet());
+  }
+}
@@ -1,13 +1,23 @@
 package com.levykin.widget.controller;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import com.levykin.widget.model.AreaFilter;
+import com.levykin.widget.model.BatchOperation;
 import com.levykin.widget.model.IdentifierResponse;
 import com.levykin.widget.model.PagedResponse;
+import com.levykin.widget.model.Tile;
 import com.levykin.widget.model.Widget;
+import com.levykin.widget.model.WidgetChange;
+import com.levykin.widget.service.WidgetChangeSubscriber;
 import com.levykin.widget.service.WidgetService;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.domain.PageRequest;
-import org.springframework.data.domain.Pageable;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Slice;
+import org.springframework.http.MediaType;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
@@ -15,19 +25,41 @@ import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import javax.validation.Validator;
+import javax.validation.constraints.Max;
 import javax.validation.constraints.Min;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.stream.Collectors;
 
+// The reactive variant is served by WidgetRouter
+@Profile("!reactive-web")
 @RequestMapping("/widget")
 @RestController
 @Validated
 class WidgetController {
 
+  static final String APPLICATION_NDJSON_VALUE = "application/x-ndjson";
+
+  static final String OVERFLOW_EVENT = "OVERFLOW";
+
   @Autowired private WidgetService service;
 
+  @Autowired private ObjectMapper objectMapper;
+
+  @Autowired private Validator validator;
+
+  @Autowired private ConditionalRequests conditionalRequests;
+
   @GetMapping("/{id}")
   Widget get(@PathVariable Long id) {
     return service.get(id);
@@ -49,19 +81,113 @@ class WidgetController {
     return service.update(widget);
   }
 
+  @PostMapping("/batch")
+  List<IdentifierResponse> batch(@RequestBody List<BatchOperation> operations) {
+    BatchOperationValidator batchValidator = new BatchOperationValidator(validator);
+    operations.forEach(batchValidator::validate);
+    return service.applyBatch(operations).stream()
+        .map(IdentifierResponse::new)
+        .collect(Collectors.toList());
+  }
+
+  @GetMapping("/tiles")
+  List<Tile> tiles(
+      @RequestParam("area_x") int x,
+      @RequestParam("area_y") int y,
+      @Min(1) @RequestParam("area_width") int width,
+      @Min(1) @RequestParam("area_height") int height,
+      @Min(1) @Max(WidgetQueries.MAX_TILES_PER_SIDE) @RequestParam("columns") int columns,
+      @Min(1) @Max(WidgetQueries.MAX_TILES_PER_SIDE) @RequestParam("rows") int rows,
+      ServletWebRequest request) {
+    if (conditionalRequests.checkStoreNotModified(request)) {
+      return null;
+    }
+    return service.getTiles(new AreaFilter(x, y, width, height), columns, rows);
+  }
+
+  @GetMapping(value = "/stream", produces = APPLICATION_NDJSON_VALUE)
+  StreamingResponseBody stream() {
+    // Each widget is written as soon as it is read, so the whole list is never held in memory
+    ObjectWriter writer =
+        objectMapper
+            .writerFor(Widget.class)
+            .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+    return outputStream -> {
+      JsonGenerator generator = objectMapper.getFactory().createGenerator(outputStream);
+      // Root values are separated by a space by default, the lines end with a newline instead
+      generator.setRootValueSeparator(null);
+      service.forEachOrdered(
+          widget -> {
+            try {
+              writer.writeValue(generator, widget);
+              generator.writeRaw('\n');
+            } catch (IOException e) {
+              throw new UncheckedIOException(e);
+            }
+          });
+      generator.flush();
+    };
+  }
+
+  @GetMapping(value = "/changes", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+  SseEmitter changes(
+      @RequestParam(value = "after_sequence", required = false) Long afterSequence,
+      @RequestHeader(value = "Last-Event-ID", required = false) Long lastEventId) {
+    // Never times out, the stream lasts until the client closes it
+    SseEmitter emitter = new SseEmitter(0L);
+    WidgetChangeSubscriber subscriber =
+        new WidgetChangeSubscriber() {
+          @Override
+          public void onChange(WidgetChange change) throws IOException {
+            emitter.send(
+                SseEmitter.event()
+                    .id(Long.toString(change.getSequence()))
+                    .name(change.getType().name())
+                    .data(change, MediaType.APPLICATION_JSON));
+          }
+
+          @Override
+          public void onOverflow() throws IOException {
+            // The client has missed changes, so it has to read widgets again and resubscribe
+            emitter.send(SseEmitter.event().name(OVERFLOW_EVENT).data(OVERFLOW_EVENT));
+            emitter.complete();
+          }
+
+          @Override
+          public void onDropped(Exception e) {
+            emitter.completeWithError(e);
+          }
+        };
+    emitter.onCompletion(() -> service.unsubscribe(subscriber));
+    emitter.onError(e -> service.unsubscribe(subscriber));
+    // A reconnecting event source resumes after the last event it has got
+    service.subscribe(lastEventId != null ? lastEventId : afterSequence, subscriber);
+    return emitter;
+  }
+
   @GetMapping
   PagedResponse<Widget> list(
       @Min(0) @RequestParam(value = "page", required = false) Integer page,
       @Min(1) @RequestParam(value = "size", required = false) Integer size,
+      @RequestParam(value = "after_index", required = false) Integer afterIndex,
       @RequestParam(value = "area_x", required = false) Integer x,
       @RequestParam(value = "area_y", required = false) Integer y,
       @Min(1) @RequestParam(value = "area_width", required = false) Integer width,
-      @Min(1) @RequestParam(value = "area_height", required = false) Integer height) {
-    Pageable pageable = page != null && size != null ? PageRequest.of(page, size) : null;
-    AreaFilter areaFilter = null;
-    if (x != null && y != null && width != null && height != null) {
-      areaFilter = new AreaFilter(x, y, width, height);
+      @Min(1) @RequestParam(value = "area_height", required = false) Integer height,
+      @RequestParam(value = "with_total", defaultValue = "false") boolean withTotal,
+      ServletWebRequest request) {
+    WidgetQueries.checkPaging(page, afterIndex);
+    // The parameters are valid by now, so an invalid request is never answered as not modified
+    if (conditionalRequests.checkStoreNotModified(request)) {
+      return null;
     }
-    return new PagedResponse<>(service.getAll(pageable, areaFilter));
+    AreaFilter areaFilter = WidgetQueries.getAreaFilter(x, y, width, height);
+    Slice<Widget> slice =
+        afterIndex != null
+            ? service.getAllAfter(afterIndex, size, areaFilter)
+            : service.getAll(WidgetQueries.getPageable(page, size), areaFilter);
+    // Pages of all widgets have the total already, other slices need a count
+    Long total = withTotal && !(slice instanceof Page) ? service.count(areaFilter) : null;
+    return new PagedResponse<>(slice, WidgetQueries.getNextCursor(slice), total);
   }
 }
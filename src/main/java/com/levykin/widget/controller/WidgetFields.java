@@ -0,0 +1,55 @@
+package com.levykin.widget.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.introspect.BeanPropertyDefinition;
+import com.levykin.widget.exception.UnknownFieldsException;
+import com.levykin.widget.model.Widget;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+/** Reads the widget properties listed in the fields parameter of a request. */
+@Profile("!reactive-web")
+@Component
+class WidgetFields {
+
+  static final String PARAMETER = "fields";
+
+  private final Set<String> names;
+
+  WidgetFields(ObjectMapper objectMapper) {
+    names =
+        objectMapper
+            .getSerializationConfig()
+            .introspect(objectMapper.constructType(Widget.class))
+            .findProperties()
+            .stream()
+            .map(BeanPropertyDefinition::getName)
+            .collect(
+                Collectors.collectingAndThen(
+                    Collectors.toCollection(TreeSet::new), Collections::unmodifiableSet));
+  }
+
+  // Sorted, so the same fields in another order are the same set; null when all are written
+  Set<String> parse(String fields) {
+    if (fields == null) {
+      return null;
+    }
+    Set<String> requested =
+        Arrays.stream(fields.split(","))
+            .map(String::trim)
+            .filter(field -> !field.isEmpty())
+            .collect(Collectors.toCollection(TreeSet::new));
+    Set<String> unknown = new TreeSet<>(requested);
+    unknown.removeAll(names);
+    if (!unknown.isEmpty()) {
+      throw new UnknownFieldsException(unknown, names);
+    }
+    return requested;
+  }
+}
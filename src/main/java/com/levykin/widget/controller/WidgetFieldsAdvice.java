@@ -0,0 +1,102 @@
+package com.levykin.widget.controller;
+
+import com.fasterxml.jackson.annotation.JsonFilter;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.ser.impl.SimpleBeanPropertyFilter;
+import com.fasterxml.jackson.databind.ser.impl.SimpleFilterProvider;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import com.levykin.widget.model.PagedResponse;
+import com.levykin.widget.model.Widget;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.core.MethodParameter;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotWritableException;
+import org.springframework.http.converter.json.AbstractJackson2HttpMessageConverter;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.http.server.ServletServerHttpRequest;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyAdvice;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Writes only the widget properties listed in the fields parameter of a single widget or a list
+ * request, in any of the Jackson formats. The body is written through a filtered copy of the
+ * mapper into a token buffer, which the converter of the format replays, so other responses are
+ * written by the mappers as they are. A writer is made once per set of fields, and since only
+ * known fields are accepted, there are no more of them than subsets of the widget properties.
+ */
+@Profile("!reactive-web")
+@ControllerAdvice
+class WidgetFieldsAdvice implements ResponseBodyAdvice<Object> {
+
+  static final String FIELDS_FILTER = "widgetFields";
+
+  private final Map<Set<String>, ObjectWriter> writers = new ConcurrentHashMap<>();
+
+  private final ObjectMapper filteredMapper;
+
+  @Autowired private WidgetFields widgetFields;
+
+  WidgetFieldsAdvice(ObjectMapper objectMapper) {
+    filteredMapper = objectMapper.copy().addMixIn(Widget.class, FilteredWidget.class);
+  }
+
+  @Override
+  public boolean supports(
+      MethodParameter returnType, Class<? extends HttpMessageConverter<?>> converterType) {
+    return returnType.hasMethodAnnotation(GetMapping.class)
+        && (Widget.class.equals(returnType.getParameterType())
+            || PagedResponse.class.equals(returnType.getParameterType()))
+        && AbstractJackson2HttpMessageConverter.class.isAssignableFrom(converterType);
+  }
+
+  @Override
+  public Object beforeBodyWrite(
+      Object body,
+      MethodParameter returnType,
+      MediaType selectedContentType,
+      Class<? extends HttpMessageConverter<?>> selectedConverterType,
+      ServerHttpRequest request,
+      ServerHttpResponse response) {
+    if (body == null || !(request instanceof ServletServerHttpRequest)) {
+      return body;
+    }
+    Set<String> fields =
+        widgetFields.parse(
+            ((ServletServerHttpRequest) request)
+                .getServletRequest()
+                .getParameter(WidgetFields.PARAMETER));
+    if (fields == null) {
+      return body;
+    }
+    TokenBuffer buffer = new TokenBuffer(filteredMapper, false);
+    try {
+      getWriter(fields).writeValue(buffer, body);
+    } catch (IOException e) {
+      throw new HttpMessageNotWritableException("Could not write widget fields", e);
+    }
+    return buffer;
+  }
+
+  private ObjectWriter getWriter(Set<String> fields) {
+    return writers.computeIfAbsent(
+        fields,
+        key ->
+            filteredMapper.writer(
+                new SimpleFilterProvider()
+                    .addFilter(FIELDS_FILTER, SimpleBeanPropertyFilter.filterOutAllExcept(key))));
+  }
+
+  // Mixed into widgets of the filtered mapper only
+  @JsonFilter(FIELDS_FILTER)
+  interface FilteredWidget {}
+}
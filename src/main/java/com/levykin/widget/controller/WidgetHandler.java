@@ -0,0 +1,251 @@
+package com.levykin.widget.controller;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.levykin.widget.exception.ConflictingParametersException;
+import com.levykin.widget.exception.WidgetChangesOverflowException;
+import com.levykin.widget.exception.WidgetNotFoundException;
+import com.levykin.widget.model.AreaFilter;
+import com.levykin.widget.model.BatchOperation;
+import com.levykin.widget.model.ErrorResponse;
+import com.levykin.widget.model.IdentifierResponse;
+import com.levykin.widget.model.PagedResponse;
+import com.levykin.widget.model.Widget;
+import com.levykin.widget.service.ReactiveWidgetService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.core.codec.DecodingException;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Slice;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.BodyInserters;
+import org.springframework.web.reactive.function.server.ServerRequest;
+import org.springframework.web.reactive.function.server.ServerResponse;
+import org.springframework.web.server.ServerWebInputException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.validation.ConstraintViolation;
+import javax.validation.ConstraintViolationException;
+import javax.validation.Validator;
+import java.io.UncheckedIOException;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Handlers of {@link WidgetRouter}, the same endpoints as {@link WidgetController} has, except for
+ * conditional requests.
+ */
+@Profile("reactive-web")
+@Component
+class WidgetHandler {
+
+  private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+  @Autowired private ReactiveWidgetService service;
+
+  @Autowired private ObjectMapper objectMapper;
+
+  @Autowired private Validator validator;
+
+  Mono<ServerResponse> get(ServerRequest request) {
+    return service.get(getId(request)).flatMap(ServerResponse.ok()::bodyValue);
+  }
+
+  Mono<ServerResponse> delete(ServerRequest request) {
+    return service.delete(getId(request)).then(ServerResponse.ok().build());
+  }
+
+  Mono<ServerResponse> create(ServerRequest request) {
+    return getWidget(request, Widget.Creation.class)
+        .flatMap(service::create)
+        .flatMap(id -> ServerResponse.ok().bodyValue(new IdentifierResponse(id)));
+  }
+
+  Mono<ServerResponse> update(ServerRequest request) {
+    long id = getId(request);
+    return getWidget(request, Widget.Update.class)
+        .doOnNext(widget -> widget.setId(id))
+        .flatMap(service::update)
+        .flatMap(ServerResponse.ok()::bodyValue);
+  }
+
+  Mono<ServerResponse> batch(ServerRequest request) {
+    BatchOperationValidator batchValidator = new BatchOperationValidator(validator);
+    return request
+        .bodyToFlux(BatchOperation.class)
+        .doOnNext(batchValidator::validate)
+        .collectList()
+        .flatMap(service::applyBatch)
+        .map(ids -> ids.stream().map(IdentifierResponse::new).collect(Collectors.toList()))
+        .flatMap(ServerResponse.ok()::bodyValue);
+  }
+
+  Mono<ServerResponse> tiles(ServerRequest request) {
+    AreaFilter area =
+        new AreaFilter(
+            getRequiredInt(request, "area_x", Integer.MIN_VALUE, Integer.MAX_VALUE),
+            getRequiredInt(request, "area_y", Integer.MIN_VALUE, Integer.MAX_VALUE),
+            getRequiredInt(request, "area_width", 1, Integer.MAX_VALUE),
+            getRequiredInt(request, "area_height", 1, Integer.MAX_VALUE));
+    int columns = getRequiredInt(request, "columns", 1, WidgetQueries.MAX_TILES_PER_SIDE);
+    int rows = getRequiredInt(request, "rows", 1, WidgetQueries.MAX_TILES_PER_SIDE);
+    return service.getTiles(area, columns, rows).flatMap(ServerResponse.ok()::bodyValue);
+  }
+
+  Mono<ServerResponse> stream(ServerRequest request) {
+    ObjectWriter writer = objectMapper.writerFor(Widget.class);
+    return ServerResponse.ok()
+        .contentType(MediaType.parseMediaType(WidgetController.APPLICATION_NDJSON_VALUE))
+        .body(service.getAllOrdered().map(widget -> toJsonLine(writer, widget)), String.class);
+  }
+
+  Mono<ServerResponse> changes(ServerRequest request) {
+    // A reconnecting event source resumes after the last event it has got
+    String lastEventId = request.headers().firstHeader("Last-Event-ID");
+    Long afterSequence =
+        lastEventId != null
+            ? parseLong("Last-Event-ID", lastEventId)
+            : getLong(request, "after_sequence");
+    Flux<ServerSentEvent<Object>> events =
+        service
+            .getChanges(afterSequence)
+            .map(
+                change ->
+                    ServerSentEvent.<Object>builder(change)
+                        .id(Long.toString(change.getSequence()))
+                        .event(change.getType().name())
+                        .build())
+            // The client has missed changes, so it has to read widgets again and resubscribe
+            .onErrorResume(
+                WidgetChangesOverflowException.class,
+                e ->
+                    Mono.just(
+                        ServerSentEvent.<Object>builder(WidgetController.OVERFLOW_EVENT)
+                            .event(WidgetController.OVERFLOW_EVENT)
+                            .build()));
+    return ServerResponse.ok()
+        .contentType(MediaType.TEXT_EVENT_STREAM)
+        .body(BodyInserters.fromServerSentEvents(events));
+  }
+
+  Mono<ServerResponse> list(ServerRequest request) {
+    Integer page = getInt(request, "page", 0, Integer.MAX_VALUE);
+    Integer size = getInt(request, "size", 1, Integer.MAX_VALUE);
+    Integer afterIndex = getInt(request, "after_index", Integer.MIN_VALUE, Integer.MAX_VALUE);
+    WidgetQueries.checkPaging(page, afterIndex);
+    AreaFilter areaFilter =
+        WidgetQueries.getAreaFilter(
+            getInt(request, "area_x", Integer.MIN_VALUE, Integer.MAX_VALUE),
+            getInt(request, "area_y", Integer.MIN_VALUE, Integer.MAX_VALUE),
+            getInt(request, "area_width", 1, Integer.MAX_VALUE),
+            getInt(request, "area_height", 1, Integer.MAX_VALUE));
+    boolean withTotal = Boolean.parseBoolean(request.queryParam("with_total").orElse("false"));
+    Mono<Slice<Widget>> slice =
+        afterIndex != null
+            ? service.getAllAfter(afterIndex, size, areaFilter)
+            : service.getAll(WidgetQueries.getPageable(page, size), areaFilter);
+    return slice
+        .flatMap(
+            widgets -> {
+              Integer nextCursor = WidgetQueries.getNextCursor(widgets);
+              // Pages of all widgets have the total already, other slices need a count
+              if (!withTotal || widgets instanceof Page) {
+                return Mono.just(new PagedResponse<>(widgets, nextCursor, null));
+              }
+              return service
+                  .count(areaFilter)
+                  .map(total -> new PagedResponse<>(widgets, nextCursor, total));
+            })
+        .flatMap(ServerResponse.ok()::bodyValue);
+  }
+
+  // Answers the same as the exception advice of the MVC stack
+  Mono<ServerResponse> handleError(Throwable e) {
+    if (e instanceof WidgetNotFoundException) {
+      logger.info(e.getMessage(), e);
+      return ServerResponse.status(HttpStatus.NOT_FOUND)
+          .bodyValue(new ErrorResponse(e.getMessage()));
+    }
+    if (e instanceof ServerWebInputException
+        || e instanceof DecodingException
+        || e instanceof ConstraintViolationException
+        || e instanceof ConflictingParametersException) {
+      logger.info(e.getMessage(), e);
+      return ServerResponse.badRequest().bodyValue(new ErrorResponse(e.getMessage()));
+    }
+    logger.error(e.getMessage(), e);
+    return ServerResponse.status(HttpStatus.INTERNAL_SERVER_ERROR)
+        .bodyValue(new ErrorResponse(HttpStatus.INTERNAL_SERVER_ERROR.getReasonPhrase()));
+  }
+
+  private Mono<Widget> getWidget(ServerRequest request, Class<?> validationGroup) {
+    return request
+        .bodyToMono(Widget.class)
+        .switchIfEmpty(Mono.error(() -> new ServerWebInputException("Request body is missing")))
+        .doOnNext(
+            widget -> {
+              Set<ConstraintViolation<Widget>> violations =
+                  validator.validate(widget, validationGroup);
+              if (!violations.isEmpty()) {
+                throw new ConstraintViolationException(violations);
+              }
+            });
+  }
+
+  private static long getId(ServerRequest request) {
+    return parseLong("id", request.pathVariable("id"));
+  }
+
+  private static Long getLong(ServerRequest request, String name) {
+    return request.queryParam(name).map(value -> parseLong(name, value)).orElse(null);
+  }
+
+  private static long parseLong(String name, String value) {
+    try {
+      return Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      throw new ServerWebInputException("Invalid " + name + ": " + value);
+    }
+  }
+
+  private static int getRequiredInt(ServerRequest request, String name, int min, int max) {
+    Integer value = getInt(request, name, min, max);
+    if (value == null) {
+      throw new ServerWebInputException("Required parameter is not present: " + name);
+    }
+    return value;
+  }
+
+  private static Integer getInt(ServerRequest request, String name, int min, int max) {
+    String value = request.queryParam(name).orElse(null);
+    if (value == null) {
+      return null;
+    }
+    int number;
+    try {
+      number = Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      throw new ServerWebInputException("Invalid " + name + ": " + value);
+    }
+    if (number < min || number > max) {
+      throw new ServerWebInputException(
+          name + " must be from " + min + " to " + max + ": " + value);
+    }
+    return number;
+  }
+
+  private static String toJsonLine(ObjectWriter writer, Widget widget) {
+    try {
+      return writer.writeValueAsString(widget) + '\n';
+    } catch (JsonProcessingException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
@@ -0,0 +1,44 @@
+package com.levykin.widget.controller;
+
+import com.levykin.widget.exception.ConflictingParametersException;
+import com.levykin.widget.model.AreaFilter;
+import com.levykin.widget.model.Widget;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
+
+import java.util.List;
+
+/** Parameters of widget lists and tiles, read the same way by both web stacks. */
+final class WidgetQueries {
+
+  static final int MAX_TILES_PER_SIDE = 1000;
+
+  private WidgetQueries() {}
+
+  // A page number means nothing after a cursor, so a request with both is rejected, not half read
+  static void checkPaging(Integer page, Integer afterIndex) {
+    if (page != null && afterIndex != null) {
+      throw new ConflictingParametersException("page", "after_index");
+    }
+  }
+
+  // An area is filtered by only if all of its parameters are given
+  static AreaFilter getAreaFilter(Integer x, Integer y, Integer width, Integer height) {
+    return x != null && y != null && width != null && height != null
+        ? new AreaFilter(x, y, width, height)
+        : null;
+  }
+
+  static Pageable getPageable(Integer page, Integer size) {
+    return page != null && size != null ? PageRequest.of(page, size) : null;
+  }
+
+  static Integer getNextCursor(Slice<Widget> slice) {
+    if (!slice.hasNext() || !slice.hasContent()) {
+      return null;
+    }
+    List<Widget> content = slice.getContent();
+    return content.get(content.size() - 1).getIndex();
+  }
+}
@@ -0,0 +1,35 @@
+package com.levykin.widget.controller;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+import org.springframework.web.reactive.function.server.RouterFunction;
+import org.springframework.web.reactive.function.server.RouterFunctions;
+import org.springframework.web.reactive.function.server.ServerResponse;
+import reactor.core.publisher.Mono;
+
+/** Widget endpoints on the reactive stack, selected by the reactive-web profile. */
+@Profile("reactive-web")
+@Configuration
+class WidgetRouter {
+
+  @Bean
+  RouterFunction<ServerResponse> widgetRoutes(WidgetHandler handler) {
+    // Fixed paths go before the id ones, routes are matched in order
+    return RouterFunctions.route()
+        .GET("/widget/tiles", handler::tiles)
+        .GET("/widget/stream", handler::stream)
+        .GET("/widget/changes", handler::changes)
+        .GET("/widget/{id}", handler::get)
+        .GET("/widget", handler::list)
+        .POST("/widget/batch", handler::batch)
+        .POST("/widget", handler::create)
+        .PUT("/widget/{id}", handler::update)
+        .DELETE("/widget/{id}", handler::delete)
+        // Deferred, so invalid parameters thrown while reading them are handled too
+        .filter(
+            (request, next) ->
+                Mono.defer(() -> next.handle(request)).onErrorResume(handler::handleError))
+        .build();
+  }
+}
@@ -0,0 +1,84 @@
+package com.levykin.widget.controller;
+
+import com.levykin.widget.model.Widget;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.core.MethodParameter;
+import org.springframework.core.annotation.Order;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.http.server.ServletServerHttpRequest;
+import org.springframework.http.server.ServletServerHttpResponse;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyAdvice;
+
+import javax.servlet.http.HttpServletResponse;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Tags a single widget with its version and leaves out the body of a conditional request with 304
+ * Not Modified when the widget has not changed.
+ */
+@Profile("!reactive-web")
+@Order(0) // Before the fields advice, which wraps the widget
+@ControllerAdvice
+class WidgetVersionAdvice implements ResponseBodyAdvice<Widget> {
+
+  @Autowired private ConditionalRequests conditionalRequests;
+
+  @Override
+  public boolean supports(
+      MethodParameter returnType, Class<? extends HttpMessageConverter<?>> converterType) {
+    return returnType.hasMethodAnnotation(GetMapping.class)
+        && Widget.class.equals(returnType.getParameterType());
+  }
+
+  @Override
+  public Widget beforeBodyWrite(
+      Widget widget,
+      MethodParameter returnType,
+      MediaType selectedContentType,
+      Class<? extends HttpMessageConverter<?>> selectedConverterType,
+      ServerHttpRequest request,
+      ServerHttpResponse response) {
+    if (widget == null
+        || !(request instanceof ServletServerHttpRequest)
+        || !(response instanceof ServletServerHttpResponse)) {
+      return widget;
+    }
+    long lastModified =
+        widget.getModificationDate() != null ? widget.getModificationDate().getTime() : -1;
+    HttpServletResponse servletResponse =
+        ((ServletServerHttpResponse) response).getServletResponse();
+    // Only informative, since shifts change the index without the modification date
+    if (lastModified >= 0) {
+      servletResponse.setDateHeader(HttpHeaders.LAST_MODIFIED, lastModified);
+    }
+    ServletWebRequest webRequest =
+        new ServletWebRequest(
+            ((ServletServerHttpRequest) request).getServletRequest(), servletResponse);
+    return conditionalRequests.checkNotModified(webRequest, getTag(widget, lastModified))
+        ? null
+        : widget;
+  }
+
+  // Shifts change the index without the modification date, and two updates can share the date,
+  // so the tag holds all the values, which tell versions of a widget apart without collisions
+  private static String getTag(Widget widget, long lastModified) {
+    return Stream.of(
+            lastModified,
+            widget.getIndex(),
+            widget.getX(),
+            widget.getY(),
+            widget.getWidth(),
+            widget.getHeight())
+        .map(String::valueOf)
+        .collect(Collectors.joining("-"));
+  }
+}
@@ -1,10 +1,18 @@
 package com.levykin.widget.dao;
 
+import com.levykin.widget.model.AreaFilter;
+import com.levykin.widget.model.Tile;
 import com.levykin.widget.model.Widget;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
 import org.springframework.data.domain.Sort;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.OptionalInt;
+import java.util.function.Consumer;
+
 public interface WidgetDao {
 
   long add(Widget data);
@@ -13,9 +21,56 @@ public interface WidgetDao {
 
   void delete(long id);
 
+  /** Adds widgets without id and updates the others, returns ids in the order of widgets. */
+  List<Long> saveAll(List<Widget> widgets);
+
+  void deleteAll(Collection<Long> ids);
+
+  /**
+   * Deletes widgets and then saves others as {@link #saveAll} does, either all of it or nothing.
+   */
+  List<Long> applyBatch(Collection<Long> deletedIds, List<Widget> widgets);
+
   Widget get(long id);
 
   Iterable<Widget> getAll(Sort sort);
 
   Page<Widget> getAll(Pageable pageable);
+
+  /** Returns only widgets which lie inside the area. */
+  Slice<Widget> getAll(Pageable pageable, AreaFilter area);
+
+  /**
+   * Returns widgets with index greater than {@code afterIndex} ordered by index. Only the page size
+   * is taken from {@code pageable}.
+   */
+  Slice<Widget> getAllAfter(int afterIndex, Pageable pageable);
+
+  Slice<Widget> getAllAfter(int afterIndex, Pageable pageable, AreaFilter area);
+
+  /** Counts all widgets without loading them. */
+  long count();
+
+  /** Counts widgets inside the area without loading them. */
+  long count(AreaFilter area);
+
+  /**
+   * Counts widgets inside the area and finds their max index per tile of the area divided into
+   * columns and rows. A widget belongs to the tile of its origin. Empty tiles are skipped, the
+   * others go row by row.
+   */
+  List<Tile> getTiles(AreaFilter area, int columns, int rows);
+
+  /** Passes all widgets ordered by index to the action one by one, without collecting them. */
+  void forEachOrdered(Consumer<? super Widget> action);
+
+  OptionalInt maxIndex();
+
+  OptionalInt minIndex();
+
+  /** Returns the lowest index from {@code fromIndex} inclusive that is not taken by any widget. */
+  int findFreeIndex(int fromIndex);
+
+  /** Increments the index of every widget with index in [{@code fromIndex}, {@code toIndex}). */
+  void shiftIndexes(int fromIndex, int toIndex);
 }
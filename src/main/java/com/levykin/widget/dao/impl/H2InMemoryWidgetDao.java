@@ -2,22 +2,73 @@ package com.levykin.widget.dao.impl;
 
 import com.levykin.widget.dao.WidgetDao;
 import com.levykin.widget.exception.WidgetNotFoundException;
+import com.levykin.widget.model.AreaFilter;
+import com.levykin.widget.model.Tile;
 import com.levykin.widget.model.Widget;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Profile;
 import org.springframework.context.annotation.Scope;
 import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
 import org.springframework.data.domain.Sort;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.OptionalInt;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @Profile("h2-in-memory-storage")
 @Scope("singleton")
 @Component
 public class H2InMemoryWidgetDao implements WidgetDao {
 
+  private static final Sort SORT_BY_INDEX = Sort.by("index");
+
   @Autowired private WidgetRepository repository;
 
+  @PersistenceContext private EntityManager entityManager;
+
+  // Widgets by id, so reading a widget or checking it exists does not reach the database
+  private final WidgetCache cache;
+
+  public H2InMemoryWidgetDao(
+      @Value("${widget-application.cache.max-size:10000}") int cacheMaxSize,
+      MeterRegistry registry) {
+    cache = new WidgetCache(cacheMaxSize);
+    // Named as Micrometer names metrics of other caches
+    FunctionCounter.builder("cache.gets", cache, WidgetCache::getHitCount)
+        .tag("cache", "widgets")
+        .tag("result", "hit")
+        .register(registry);
+    FunctionCounter.builder("cache.gets", cache, WidgetCache::getMissCount)
+        .tag("cache", "widgets")
+        .tag("result", "miss")
+        .register(registry);
+    FunctionCounter.builder("cache.evictions", cache, WidgetCache::getEvictionCount)
+        .tag("cache", "widgets")
+        .register(registry);
+    Gauge.builder("cache.size", cache, WidgetCache::size)
+        .tag("cache", "widgets")
+        .register(registry);
+  }
+
   @Override
   public long add(Widget widget) {
     repository.save(widget);
@@ -26,19 +77,71 @@ public class H2InMemoryWidgetDao implements WidgetDao {
 
   @Override
   public void update(Widget widget) {
-    checkExisting(widget.getId());
-    repository.save(widget);
+    // A single statement, where a save would select the widget to merge it first
+    int updated =
+        repository.updateById(
+            widget.getId(),
+            widget.getX(),
+            widget.getY(),
+            widget.getIndex(),
+            widget.getWidth(),
+            widget.getHeight(),
+            widget.getModificationDate());
+    cache.invalidate(widget.getId());
+    if (updated == 0) {
+      throw new WidgetNotFoundException(widget.getId());
+    }
   }
 
   @Override
   public void delete(long id) {
     checkExisting(id);
     repository.deleteById(id);
+    cache.invalidate(id);
+  }
+
+  @Override
+  @Transactional
+  public List<Long> saveAll(List<Widget> widgets) {
+    // Loaded widgets stay in the persistence context, so their merge does not select them again
+    checkExisting(
+        widgets.stream().map(Widget::getId).filter(Objects::nonNull).collect(Collectors.toList()));
+    repository.saveAll(widgets);
+    List<Long> ids = widgets.stream().map(Widget::getId).collect(Collectors.toList());
+    invalidateOnCompletion(ids);
+    return ids;
+  }
+
+  @Override
+  @Transactional
+  public void deleteAll(Collection<Long> ids) {
+    checkExisting(ids);
+    if (!ids.isEmpty()) {
+      repository.deleteByIds(ids);
+      invalidateOnCompletion(ids);
+    }
+  }
+
+  // Calls of this bean's own methods join the same transaction
+  @Override
+  @Transactional
+  public List<Long> applyBatch(Collection<Long> deletedIds, List<Widget> widgets) {
+    if (!deletedIds.isEmpty()) {
+      deleteAll(deletedIds);
+    }
+    return saveAll(widgets);
   }
 
   @Override
   public Widget get(long id) {
-    return repository.findById(id).orElseThrow(() -> new WidgetNotFoundException(id));
+    Widget cachedWidget = cache.get(id);
+    if (cachedWidget != null) {
+      return cachedWidget;
+    }
+    long generation = cache.getGeneration();
+    Widget widget = repository.findById(id).orElseThrow(() -> new WidgetNotFoundException(id));
+    cache.put(generation, widget);
+    return widget;
   }
 
   @Override
@@ -51,8 +154,138 @@ public class H2InMemoryWidgetDao implements WidgetDao {
     return repository.findAll(pageable);
   }
 
+  @Override
+  public Slice<Widget> getAll(Pageable pageable, AreaFilter area) {
+    return repository.findAllInArea(
+        area.getX(),
+        area.getY(),
+        area.getX() + area.getWidth(),
+        area.getY() + area.getHeight(),
+        pageable);
+  }
+
+  @Override
+  public Slice<Widget> getAllAfter(int afterIndex, Pageable pageable) {
+    return repository.findByIndexGreaterThan(afterIndex, toFirstPage(pageable));
+  }
+
+  @Override
+  public Slice<Widget> getAllAfter(int afterIndex, Pageable pageable, AreaFilter area) {
+    return repository.findAllInAreaAfter(
+        afterIndex,
+        area.getX(),
+        area.getY(),
+        area.getX() + area.getWidth(),
+        area.getY() + area.getHeight(),
+        toFirstPage(pageable));
+  }
+
+  @Override
+  public long count() {
+    return repository.count();
+  }
+
+  @Override
+  public long count(AreaFilter area) {
+    return repository.countInArea(
+        area.getX(),
+        area.getY(),
+        area.getX() + area.getWidth(),
+        area.getY() + area.getHeight());
+  }
+
+  @Override
+  public List<Tile> getTiles(AreaFilter area, int columns, int rows) {
+    return repository
+        .countByTiles(
+            area.getX(),
+            area.getY(),
+            area.getWidth(),
+            area.getHeight(),
+            area.getX() + area.getWidth(),
+            area.getY() + area.getHeight(),
+            columns,
+            rows)
+        .stream()
+        .map(
+            tile ->
+                new Tile(
+                    ((Number) tile[0]).intValue(),
+                    ((Number) tile[1]).intValue(),
+                    ((Number) tile[2]).longValue(),
+                    ((Number) tile[3]).intValue()))
+        .collect(Collectors.toList());
+  }
+
+  @Override
+  @Transactional(readOnly = true)
+  public void forEachOrdered(Consumer<? super Widget> action) {
+    try (Stream<Widget> widgets = repository.streamAllOrderedByIndex()) {
+      widgets.forEach(
+          widget -> {
+            // Passed widgets must not pile up in the persistence context
+            entityManager.detach(widget);
+            action.accept(widget);
+          });
+    }
+  }
+
+  @Override
+  public OptionalInt maxIndex() {
+    return toOptionalInt(repository.findMaxIndex());
+  }
+
+  @Override
+  public OptionalInt minIndex() {
+    return toOptionalInt(repository.findMinIndex());
+  }
+
+  @Override
+  public int findFreeIndex(int fromIndex) {
+    if (!repository.existsByIndex(fromIndex)) {
+      return fromIndex;
+    }
+    return repository.findRunEndIndex(fromIndex) + 1;
+  }
+
+  @Override
+  public void shiftIndexes(int fromIndex, int toIndex) {
+    repository.shiftIndexes(fromIndex, toIndex);
+    cache.invalidateIndexes(fromIndex, toIndex);
+  }
+
+  private static Pageable toFirstPage(Pageable pageable) {
+    return PageRequest.of(0, pageable.getPageSize(), SORT_BY_INDEX);
+  }
+
+  private static OptionalInt toOptionalInt(Integer index) {
+    return index != null ? OptionalInt.of(index) : OptionalInt.empty();
+  }
+
+  // Invalidated again when the transaction is over, a reader could cache a widget loaded before it
+  private void invalidateOnCompletion(Collection<Long> ids) {
+    cache.invalidate(ids);
+    if (TransactionSynchronizationManager.isSynchronizationActive()) {
+      TransactionSynchronizationManager.registerSynchronization(
+          new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCompletion(int status) {
+              cache.invalidate(ids);
+            }
+          });
+    }
+  }
+
+  private void checkExisting(Collection<Long> ids) {
+    Set<Long> absentIds = new HashSet<>(ids);
+    repository.findAllById(ids).forEach(widget -> absentIds.remove(widget.getId()));
+    if (!absentIds.isEmpty()) {
+      throw new WidgetNotFoundException(absentIds.iterator().next());
+    }
+  }
+
   private void checkExisting(long id) {
-    if (!repository.existsById(id)) {
+    if (!cache.contains(id) && !repository.existsById(id)) {
       throw new WidgetNotFoundException(id);
     }
   }
@@ -2,91 +2,501 @@ package com.levykin.widget.dao.impl;
 
 import com.levykin.widget.dao.WidgetDao;
 import com.levykin.widget.exception.WidgetNotFoundException;
+import com.levykin.widget.model.AreaFilter;
+import com.levykin.widget.model.Tile;
 import com.levykin.widget.model.Widget;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.context.annotation.Profile;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageImpl;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
+import org.springframework.data.domain.SliceImpl;
 import org.springframework.data.domain.Sort;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 @Profile("java-in-memory-storage")
 @Component
+@Lazy(false)
 public class JavaInMemoryWidgetDao implements WidgetDao {
 
-  private final Map<Long, Widget> map = new ConcurrentHashMap<>();
+  private static final int GRID_CELL_SIZE = 100;
+
+  // Widgets of the grid cells looked through and widgets returned by an area query
+  private static final String BACKEND = JavaInMemoryWidgetDao.class.getSimpleName();
+  private final DistributionSummary areaScanned;
+  private final DistributionSummary areaReturned;
+
+  private final Map<Long, WidgetSnapshot> map = new ConcurrentHashMap<>();
+  private final WidgetRankTree zOrderedWidgets = new WidgetRankTree();
+  private final WidgetGridIndex gridIndex = new WidgetGridIndex(GRID_CELL_SIZE);
   private final AtomicLong idSequenceCounter = new AtomicLong(0L);
 
+  // Writes of single widgets share the lock, so appends and updates of different widgets run
+  // concurrently. Writes of many widgets, shifts and snapshots hold it exclusively.
+  private final ReadWriteLock storeLock = new ReentrantReadWriteLock();
+
+  // Writes of the same widget are stored and logged under its lock, so they are logged in the
+  // order they are stored
+  private final Object[] widgetLocks = new Object[64];
+
+  {
+    Arrays.setAll(widgetLocks, i -> new Object());
+  }
+
   private static Sort SORT_BY_INDEX = Sort.by("index");
   private static Sort SORT_BY_INDEX_DESC = Sort.by("index").descending();
 
+  // The store is kept in memory only unless the journal directory is set
+  @Value("${widget-application.journal.directory:}")
+  private String journalDirectory;
+
+  @Value("${widget-application.journal.sync-interval-ms:10}")
+  private long journalSyncInterval;
+
+  @Value("${widget-application.journal.snapshot-interval-s:300}")
+  private long journalSnapshotInterval;
+
+  private WidgetJournal journal;
+
+  public JavaInMemoryWidgetDao(MeterRegistry registry) {
+    areaScanned = registry.summary("widget.area.scanned", "backend", BACKEND);
+    areaReturned = registry.summary("widget.area.returned", "backend", BACKEND);
+  }
+
+  @PostConstruct
+  void openJournal() {
+    if (journalDirectory == null || journalDirectory.isEmpty()) {
+      return;
+    }
+    journal = new WidgetJournal(Paths.get(journalDirectory));
+    long lastId =
+        journal.recover(
+            new WidgetJournal.Replay() {
+              @Override
+              public void store(WidgetSnapshot widget) {
+                idSequenceCounter.accumulateAndGet(widget.getId(), Math::max);
+                JavaInMemoryWidgetDao.this.store(widget);
+              }
+
+              @Override
+              public void delete(long id) {
+                WidgetSnapshot widget = map.remove(id);
+                if (widget != null) {
+                  unindex(widget);
+                }
+              }
+
+              @Override
+              public void shift(int fromIndex, int toIndex) {
+                shiftWithoutLogging(fromIndex, toIndex);
+              }
+            });
+    idSequenceCounter.accumulateAndGet(lastId, Math::max);
+    // Compact the replayed log right away
+    takeSnapshot();
+    journal.schedule(journalSyncInterval, journalSnapshotInterval, this::takeSnapshot);
+  }
+
+  @PreDestroy
+  void closeJournal() {
+    if (journal != null) {
+      takeSnapshot();
+      journal.close();
+    }
+  }
+
+  /** Syncs the logged changes right away instead of at the next sync interval. */
+  void syncJournal() {
+    journal.flush();
+  }
+
+  /** Stops the journal without a snapshot and without syncing the log, as a crash does. */
+  void abandonJournal() {
+    journal.abandon();
+  }
+
   @Override
   public long add(Widget creationWidget) {
-    Widget widget = new Widget(creationWidget);
-    widget.setId(idSequenceCounter.incrementAndGet());
-    map.put(widget.getId(), widget);
-    return widget.getId();
+    Lock sharedLock = storeLock.readLock();
+    sharedLock.lock();
+    try {
+      // A new id is taken by no other writer, so the widget needs no lock of its own
+      long id = idSequenceCounter.incrementAndGet();
+      WidgetSnapshot widget = WidgetSnapshot.of(id, creationWidget);
+      store(widget);
+      logStore(widget);
+      return id;
+    } finally {
+      sharedLock.unlock();
+    }
   }
 
   @Override
   public void delete(long id) {
-    checkExisting(id);
-    map.remove(id);
+    Lock sharedLock = storeLock.readLock();
+    sharedLock.lock();
+    try {
+      synchronized (getWidgetLock(id)) {
+        checkExisting(id);
+        unindex(map.remove(id));
+        logDelete(id);
+      }
+    } finally {
+      sharedLock.unlock();
+    }
   }
 
   @Override
   public void update(Widget updateWidget) {
     Long id = updateWidget.getId();
-    checkExisting(id);
-    map.put(id, new Widget(updateWidget));
+    Lock sharedLock = storeLock.readLock();
+    sharedLock.lock();
+    try {
+      synchronized (getWidgetLock(id)) {
+        checkExisting(id);
+        WidgetSnapshot widget = WidgetSnapshot.of(id, updateWidget);
+        store(widget);
+        logStore(widget);
+      }
+    } finally {
+      sharedLock.unlock();
+    }
+  }
+
+  @Override
+  public List<Long> saveAll(List<Widget> widgets) {
+    Lock exclusiveLock = storeLock.writeLock();
+    exclusiveLock.lock();
+    try {
+      widgets.stream().map(Widget::getId).filter(Objects::nonNull).forEach(this::checkExisting);
+      List<Long> ids = new ArrayList<>(widgets.size());
+      for (Widget widget : widgets) {
+        long id = widget.getId() != null ? widget.getId() : idSequenceCounter.incrementAndGet();
+        WidgetSnapshot snapshot = WidgetSnapshot.of(id, widget);
+        store(snapshot);
+        logStore(snapshot);
+        ids.add(id);
+      }
+      return ids;
+    } finally {
+      exclusiveLock.unlock();
+    }
+  }
+
+  @Override
+  public void deleteAll(Collection<Long> ids) {
+    Lock exclusiveLock = storeLock.writeLock();
+    exclusiveLock.lock();
+    try {
+      ids.forEach(this::checkExisting);
+      for (Long id : ids) {
+        unindex(map.remove(id));
+        logDelete(id);
+      }
+    } finally {
+      exclusiveLock.unlock();
+    }
+  }
+
+  @Override
+  public List<Long> applyBatch(Collection<Long> deletedIds, List<Widget> widgets) {
+    Lock exclusiveLock = storeLock.writeLock();
+    exclusiveLock.lock();
+    try {
+      // Checked before anything is changed, as the other widgets are checked by saveAll
+      deletedIds.forEach(this::checkExisting);
+      widgets.stream().map(Widget::getId).filter(Objects::nonNull).forEach(this::checkExisting);
+      deleteAll(deletedIds);
+      return saveAll(widgets);
+    } finally {
+      exclusiveLock.unlock();
+    }
   }
 
   @Override
   public Widget get(long id) {
-    Widget widget = map.get(id);
+    WidgetSnapshot widget = map.get(id);
     if (widget == null) {
       throw new WidgetNotFoundException(id);
     }
-    return new Widget(widget);
+    return widget.toWidget();
   }
 
   @Override
   public Iterable<Widget> getAll(Sort sort) {
-    return getSortedStream(sort).map(Widget::new).collect(Collectors.toList());
+    return getSortedStream(sort, 0).map(WidgetSnapshot::toWidget).collect(Collectors.toList());
   }
 
   @Override
   public Page<Widget> getAll(Pageable pageable) {
     int from = pageable.getPageNumber() * pageable.getPageSize();
     int limit = pageable.getPageSize();
+    // The page starts right at its rank instead of skipping all widgets before it
     List<Widget> widgets =
-        getSortedStream(pageable.getSort())
-            .skip(from)
+        getSortedStream(pageable.getSort(), from)
             .limit(limit)
-            .map(Widget::new)
+            .map(WidgetSnapshot::toWidget)
             .collect(Collectors.toList());
-    return new PageImpl<>(widgets, pageable, map.size());
+    return new PageImpl<>(widgets, pageable, zOrderedWidgets.size());
+  }
+
+  @Override
+  public Slice<Widget> getAll(Pageable pageable, AreaFilter area) {
+    int from = pageable.getPageNumber() * pageable.getPageSize();
+    long[] scanned = {0};
+    Stream<WidgetSnapshot> widgets =
+        gridIndex
+            .findCandidates(area)
+            .peek(widget -> scanned[0]++)
+            .filter(widget -> widget.isInside(area))
+            .sorted(getComparator(pageable.getSort()))
+            .skip(from);
+    return recordAreaScan(scanned, getSlice(widgets, pageable));
+  }
+
+  @Override
+  public Slice<Widget> getAllAfter(int afterIndex, Pageable pageable) {
+    WidgetSnapshot cursor = WidgetSnapshot.zOrderKey(afterIndex, Long.MAX_VALUE);
+    return getSlice(zOrderedWidgets.stream(zOrderedWidgets.rank(cursor)), pageable);
+  }
+
+  @Override
+  public Slice<Widget> getAllAfter(int afterIndex, Pageable pageable, AreaFilter area) {
+    WidgetSnapshot cursor = WidgetSnapshot.zOrderKey(afterIndex, Long.MAX_VALUE);
+    long[] scanned = {0};
+    Stream<WidgetSnapshot> widgets =
+        gridIndex
+            .findCandidates(area)
+            .peek(widget -> scanned[0]++)
+            .filter(
+                widget ->
+                    WidgetSnapshot.Z_ORDER.compare(widget, cursor) > 0 && widget.isInside(area))
+            .sorted(WidgetSnapshot.Z_ORDER);
+    return recordAreaScan(scanned, getSlice(widgets, pageable));
+  }
+
+  // Sorting takes all candidates, so they are all scanned once the slice is taken
+  private Slice<Widget> recordAreaScan(long[] scanned, Slice<Widget> slice) {
+    areaScanned.record(scanned[0]);
+    areaReturned.record(slice.getNumberOfElements());
+    return slice;
+  }
+
+  private static Slice<Widget> getSlice(Stream<WidgetSnapshot> widgets, Pageable pageable) {
+    // We need to know if there are exist any more widgets
+    int limit = pageable.getPageSize() + 1;
+    List<Widget> widgetsWithNext =
+        widgets.limit(limit).map(WidgetSnapshot::toWidget).collect(Collectors.toList());
+    boolean hasNext = widgetsWithNext.size() > pageable.getPageSize();
+    List<Widget> content =
+        hasNext ? widgetsWithNext.subList(0, pageable.getPageSize()) : widgetsWithNext;
+    return new SliceImpl<>(content, pageable, hasNext);
+  }
+
+  @Override
+  public long count() {
+    return zOrderedWidgets.size();
+  }
+
+  @Override
+  public long count(AreaFilter area) {
+    return gridIndex.count(area);
+  }
+
+  @Override
+  public List<Tile> getTiles(AreaFilter area, int columns, int rows) {
+    // Count and max index by the tile number in row-major order
+    Map<Long, int[]> tiles = new TreeMap<>();
+    gridIndex
+        .findCandidates(area)
+        .filter(widget -> widget.isInside(area))
+        .forEach(
+            widget -> {
+              long tile =
+                  (long) area.getTileRow(widget.getY(), rows) * columns
+                      + area.getTileColumn(widget.getX(), columns);
+              int[] aggregate =
+                  tiles.computeIfAbsent(tile, key -> new int[] {0, widget.getIndex()});
+              aggregate[0]++;
+              aggregate[1] = Math.max(aggregate[1], widget.getIndex());
+            });
+    return tiles.entrySet().stream()
+        .map(
+            tile ->
+                new Tile(
+                    (int) (tile.getKey() % columns),
+                    (int) (tile.getKey() / columns),
+                    tile.getValue()[0],
+                    tile.getValue()[1]))
+        .collect(Collectors.toList());
+  }
+
+  @Override
+  public void forEachOrdered(Consumer<? super Widget> action) {
+    zOrderedWidgets.stream(0).forEach(widget -> action.accept(widget.toWidget()));
+  }
+
+  @Override
+  public OptionalInt maxIndex() {
+    return toOptionalIndex(zOrderedWidgets.last());
+  }
+
+  @Override
+  public OptionalInt minIndex() {
+    return toOptionalIndex(zOrderedWidgets.first());
+  }
+
+  @Override
+  public int findFreeIndex(int fromIndex) {
+    int freeIndex = fromIndex;
+    Iterator<WidgetSnapshot> widgets =
+        zOrderedWidgets
+            .stream(zOrderedWidgets.rank(WidgetSnapshot.zOrderKey(fromIndex, Long.MIN_VALUE)))
+            .iterator();
+    while (widgets.hasNext()) {
+      WidgetSnapshot widget = widgets.next();
+      if (widget.getIndex() > freeIndex) {
+        break;
+      }
+      freeIndex = widget.getIndex() + 1;
+    }
+    return freeIndex;
+  }
+
+  @Override
+  public void shiftIndexes(int fromIndex, int toIndex) {
+    Lock exclusiveLock = storeLock.writeLock();
+    exclusiveLock.lock();
+    try {
+      shiftWithoutLogging(fromIndex, toIndex);
+      if (journal != null) {
+        journal.logShift(fromIndex, toIndex);
+      }
+    } finally {
+      exclusiveLock.unlock();
+    }
+  }
+
+  private void shiftWithoutLogging(int fromIndex, int toIndex) {
+    int fromRank = zOrderedWidgets.rank(WidgetSnapshot.zOrderKey(fromIndex, Long.MIN_VALUE));
+    int toRank = zOrderedWidgets.rank(WidgetSnapshot.zOrderKey(toIndex, Long.MIN_VALUE));
+    List<WidgetSnapshot> widgetsToShift =
+        zOrderedWidgets.stream(fromRank).limit(toRank - fromRank).collect(Collectors.toList());
+    // Shifting widgets in reverse order, so each of them moves to an already released index
+    for (int i = widgetsToShift.size() - 1; i >= 0; i--) {
+      WidgetSnapshot widget = widgetsToShift.get(i);
+      store(widget.withIndex(widget.getIndex() + 1));
+    }
+  }
+
+  private void logStore(WidgetSnapshot widget) {
+    if (journal != null) {
+      journal.logStore(widget);
+    }
+  }
+
+  private void logDelete(long id) {
+    if (journal != null) {
+      journal.logDelete(id);
+    }
   }
 
-  private Stream<Widget> getSortedStream(Sort sort) {
+  // Only the cut-over to the new segment holds the store, the disk is written outside of it
+  void takeSnapshot() {
+    long segment;
+    long lastId;
+    Iterator<WidgetSnapshot> widgets;
+    // The tree is immutable, so its version at the start of the segment is written unlocked
+    Lock exclusiveLock = storeLock.writeLock();
+    exclusiveLock.lock();
+    try {
+      segment = journal.startSegment();
+      lastId = idSequenceCounter.get();
+      widgets = zOrderedWidgets.stream(0).iterator();
+    } finally {
+      exclusiveLock.unlock();
+    }
+    journal.writeSnapshot(segment, lastId, widgets);
+  }
+
+  // A change replaces the immutable widget snapshot in all indexes
+  private void store(WidgetSnapshot widget) {
+    WidgetSnapshot previous = map.put(widget.getId(), widget);
+    if (previous != null) {
+      zOrderedWidgets.replace(previous, widget);
+      gridIndex.remove(previous);
+    } else {
+      zOrderedWidgets.add(widget);
+    }
+    gridIndex.add(widget);
+  }
+
+  private void unindex(WidgetSnapshot widget) {
+    zOrderedWidgets.remove(widget);
+    gridIndex.remove(widget);
+  }
+
+  private static OptionalInt toOptionalIndex(Optional<WidgetSnapshot> widget) {
+    return widget.isPresent() ? OptionalInt.of(widget.get().getIndex()) : OptionalInt.empty();
+  }
+
+  private Stream<WidgetSnapshot> getSortedStream(Sort sort, int skipped) {
+    // The tree is already ordered, so both directions are just a walk over it
     if (sort.equals(SORT_BY_INDEX)) {
-      return map.values().stream().sorted(Comparator.comparingInt(Widget::getIndex));
+      return zOrderedWidgets.stream(skipped);
     }
     if (sort.equals(SORT_BY_INDEX_DESC)) {
-      return map.values().stream().sorted(Comparator.comparingInt(Widget::getIndex).reversed());
+      return zOrderedWidgets.descendingStream(skipped);
+    }
+    throw unsupportedSort();
+  }
+
+  private Comparator<WidgetSnapshot> getComparator(Sort sort) {
+    if (sort.equals(SORT_BY_INDEX)) {
+      return WidgetSnapshot.Z_ORDER;
     }
-    throw new IllegalStateException(
+    if (sort.equals(SORT_BY_INDEX_DESC)) {
+      return WidgetSnapshot.Z_ORDER.reversed();
+    }
+    throw unsupportedSort();
+  }
+
+  private static IllegalStateException unsupportedSort() {
+    return new IllegalStateException(
         JavaInMemoryWidgetDao.class.getName() + " supports sorting only by index");
   }
 
+  private Object getWidgetLock(long id) {
+    return widgetLocks[Long.hashCode(id) & (widgetLocks.length - 1)];
+  }
+
   private void checkExisting(long id) {
     if (!map.containsKey(id)) {
       throw new WidgetNotFoundException(id);
@@ -0,0 +1,485 @@
+package com.levykin.widget.dao.impl;
+
+import com.levykin.widget.dao.WidgetDao;
+import com.levykin.widget.exception.WidgetNotFoundException;
+import com.levykin.widget.model.AreaFilter;
+import com.levykin.widget.model.Tile;
+import com.levykin.widget.model.Widget;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
+import org.springframework.data.domain.SliceImpl;
+import org.springframework.data.domain.Sort;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.OptionalInt;
+import java.util.OptionalLong;
+import java.util.PrimitiveIterator;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Widgets in memory-mapped primitive columns, see {@link MappedWidgetColumns}. Only the z-order
+ * keys are on the heap, they are rebuilt from the columns on start. Area queries scan the
+ * coordinate columns.
+ */
+@Profile("mapped-columnar-storage")
+@Component
+@Lazy(false)
+public class MappedColumnarWidgetDao implements WidgetDao {
+
+  private static final Sort SORT_BY_INDEX = Sort.by("index");
+  private static final Sort SORT_BY_INDEX_DESC = Sort.by("index").descending();
+
+  // Widgets passed by a single lock hold of forEachOrdered
+  private static final int ORDERED_BATCH_SIZE = 1000;
+
+  // Slots or keys looked through and widgets returned by an area query
+  private static final String BACKEND = MappedColumnarWidgetDao.class.getSimpleName();
+  private final DistributionSummary areaScanned;
+  private final DistributionSummary areaReturned;
+
+  private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+  @Value("${widget-application.mapped-storage.directory:widget-store}")
+  private String directory;
+
+  // Changed pages are written to disk this often, and only on close when it is zero
+  @Value("${widget-application.mapped-storage.force-interval-ms:1000}")
+  private long forceInterval;
+
+  private ScheduledExecutorService forcing;
+
+  private MappedWidgetColumns columns;
+
+  private final ZOrderKeys zOrderKeys = new ZOrderKeys();
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  public MappedColumnarWidgetDao(MeterRegistry registry) {
+    areaScanned = registry.summary("widget.area.scanned", "backend", BACKEND);
+    areaReturned = registry.summary("widget.area.returned", "backend", BACKEND);
+  }
+
+  @PostConstruct
+  void open() {
+    columns = MappedWidgetColumns.open(Paths.get(directory));
+    int slotCount = columns.getSlotCount();
+    for (int slot = 0; slot < slotCount; slot++) {
+      if (!columns.isFree(slot)) {
+        columns.remap(slot);
+        zOrderKeys.add(ZOrderKeys.toKey(columns.getIndex(slot), columns.getId(slot)));
+      }
+    }
+    if (forceInterval > 0) {
+      forcing =
+          Executors.newSingleThreadScheduledExecutor(
+              task -> {
+                Thread thread = new Thread(task, "widget-store-force");
+                thread.setDaemon(true);
+                return thread;
+              });
+      forcing.scheduleWithFixedDelay(
+          this::force, forceInterval, forceInterval, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  @PreDestroy
+  void close() {
+    if (forcing != null) {
+      forcing.shutdown();
+    }
+    columns.close();
+  }
+
+  // Writes go on meanwhile, the pages are forced as they are at the moment
+  private void force() {
+    try {
+      columns.force();
+    } catch (RuntimeException e) {
+      logger.error(e.getMessage(), e);
+    }
+  }
+
+  @Override
+  public long add(Widget creationWidget) {
+    return write(
+        () -> {
+          long id = columns.nextId();
+          store(id, creationWidget);
+          return id;
+        });
+  }
+
+  @Override
+  public void update(Widget updateWidget) {
+    write(
+        () -> {
+          long id = updateWidget.getId();
+          checkExisting(id);
+          store(id, updateWidget);
+          return id;
+        });
+  }
+
+  @Override
+  public void delete(long id) {
+    write(
+        () -> {
+          remove(getSlot(id));
+          return id;
+        });
+  }
+
+  @Override
+  public List<Long> saveAll(List<Widget> widgets) {
+    return write(
+        () -> {
+          widgets.stream().map(Widget::getId).filter(Objects::nonNull).forEach(this::checkExisting);
+          List<Long> ids = new ArrayList<>(widgets.size());
+          for (Widget widget : widgets) {
+            long id = widget.getId() != null ? widget.getId() : columns.nextId();
+            store(id, widget);
+            ids.add(id);
+          }
+          return ids;
+        });
+  }
+
+  @Override
+  public void deleteAll(Collection<Long> ids) {
+    write(
+        () -> {
+          ids.forEach(this::checkExisting);
+          ids.forEach(id -> remove(getSlot(id)));
+          return ids;
+        });
+  }
+
+  @Override
+  public List<Long> applyBatch(Collection<Long> deletedIds, List<Widget> widgets) {
+    // The write lock is reentrant, so nothing is read in between
+    return write(
+        () -> {
+          deletedIds.forEach(this::checkExisting);
+          widgets.stream().map(Widget::getId).filter(Objects::nonNull).forEach(this::checkExisting);
+          deleteAll(deletedIds);
+          return saveAll(widgets);
+        });
+  }
+
+  @Override
+  public Widget get(long id) {
+    return read(() -> columns.toWidget(getSlot(id)));
+  }
+
+  @Override
+  public Iterable<Widget> getAll(Sort sort) {
+    return read(() -> getOrdered(sort, 0, Integer.MAX_VALUE));
+  }
+
+  @Override
+  public Page<Widget> getAll(Pageable pageable) {
+    return read(
+        () -> {
+          int from = pageable.getPageNumber() * pageable.getPageSize();
+          List<Widget> widgets = getOrdered(pageable.getSort(), from, pageable.getPageSize());
+          return new PageImpl<>(widgets, pageable, zOrderKeys.size());
+        });
+  }
+
+  @Override
+  public Slice<Widget> getAll(Pageable pageable, AreaFilter area) {
+    return read(
+        () -> {
+          areaScanned.record(columns.getSlotCount());
+          long[] keys = findKeysInArea(area);
+          Arrays.sort(keys);
+          boolean descending = getDirection(pageable.getSort());
+          long from = (long) pageable.getPageNumber() * pageable.getPageSize();
+          List<Widget> widgets = new ArrayList<>();
+          for (long i = from; i < keys.length && widgets.size() < pageable.getPageSize(); i++) {
+            long key = keys[(int) (descending ? keys.length - 1 - i : i)];
+            widgets.add(columns.toWidget(columns.findSlot(ZOrderKeys.getId(key))));
+          }
+          areaReturned.record(widgets.size());
+          return new SliceImpl<>(widgets, pageable, from + widgets.size() < keys.length);
+        });
+  }
+
+  @Override
+  public Slice<Widget> getAllAfter(int afterIndex, Pageable pageable) {
+    return getAllAfter(afterIndex, pageable, null);
+  }
+
+  @Override
+  public Slice<Widget> getAllAfter(int afterIndex, Pageable pageable, AreaFilter area) {
+    return read(
+        () -> {
+          List<Widget> widgets = new ArrayList<>();
+          // No widget has the greatest id, so all widgets with greater keys are after the index
+          PrimitiveIterator.OfLong keys =
+              zOrderKeys.iterator(zOrderKeys.rank(ZOrderKeys.toKey(afterIndex, ZOrderKeys.MAX_ID)));
+          boolean hasNext = false;
+          long scanned = 0;
+          while (keys.hasNext() && !hasNext) {
+            scanned++;
+            int slot = columns.findSlot(ZOrderKeys.getId(keys.nextLong()));
+            if (area == null || isInside(slot, area)) {
+              if (widgets.size() < pageable.getPageSize()) {
+                widgets.add(columns.toWidget(slot));
+              } else {
+                hasNext = true;
+              }
+            }
+          }
+          if (area != null) {
+            areaScanned.record(scanned);
+            areaReturned.record(widgets.size());
+          }
+          return new SliceImpl<>(widgets, pageable, hasNext);
+        });
+  }
+
+  @Override
+  public long count() {
+    return read(zOrderKeys::size);
+  }
+
+  @Override
+  public long count(AreaFilter area) {
+    return read(
+        () -> {
+          long[] count = {0};
+          forEachSlotInArea(area, slot -> count[0]++);
+          return count[0];
+        });
+  }
+
+  @Override
+  public List<Tile> getTiles(AreaFilter area, int columnCount, int rowCount) {
+    return read(
+        () -> {
+          // Count and max index by the tile number in row-major order
+          Map<Long, int[]> tiles = new TreeMap<>();
+          forEachSlotInArea(
+              area,
+              slot -> {
+                int index = columns.getIndex(slot);
+                long tile =
+                    (long) area.getTileRow(columns.getY(slot), rowCount) * columnCount
+                        + area.getTileColumn(columns.getX(slot), columnCount);
+                int[] aggregate = tiles.computeIfAbsent(tile, key -> new int[] {0, index});
+                aggregate[0]++;
+                aggregate[1] = Math.max(aggregate[1], index);
+              });
+          List<Tile> result = new ArrayList<>(tiles.size());
+          tiles.forEach(
+              (tile, aggregate) ->
+                  result.add(
+                      new Tile(
+                          (int) (tile % columnCount),
+                          (int) (tile / columnCount),
+                          aggregate[0],
+                          aggregate[1])));
+          return result;
+        });
+  }
+
+  @Override
+  public void forEachOrdered(Consumer<? super Widget> action) {
+    // Writers are let in between the batches, the next one starts after the last passed widget
+    long nextKey = Long.MIN_VALUE;
+    while (true) {
+      long fromKey = nextKey;
+      List<Widget> batch =
+          read(() -> getOrdered(SORT_BY_INDEX, zOrderKeys.rank(fromKey), ORDERED_BATCH_SIZE));
+      batch.forEach(action);
+      if (batch.size() < ORDERED_BATCH_SIZE) {
+        return;
+      }
+      Widget last = batch.get(batch.size() - 1);
+      nextKey = ZOrderKeys.toKey(last.getIndex(), last.getId()) + 1;
+    }
+  }
+
+  @Override
+  public OptionalInt maxIndex() {
+    return read(() -> toOptionalIndex(zOrderKeys.last()));
+  }
+
+  @Override
+  public OptionalInt minIndex() {
+    return read(() -> toOptionalIndex(zOrderKeys.first()));
+  }
+
+  @Override
+  public int findFreeIndex(int fromIndex) {
+    return read(
+        () -> {
+          int freeIndex = fromIndex;
+          PrimitiveIterator.OfLong keys =
+              zOrderKeys.iterator(zOrderKeys.rank(ZOrderKeys.toKey(fromIndex, 0)));
+          while (keys.hasNext()) {
+            int index = ZOrderKeys.getIndex(keys.nextLong());
+            if (index > freeIndex) {
+              break;
+            }
+            freeIndex = index + 1;
+          }
+          return freeIndex;
+        });
+  }
+
+  @Override
+  public void shiftIndexes(int fromIndex, int toIndex) {
+    write(
+        () -> {
+          List<Long> keysToShift = new ArrayList<>();
+          PrimitiveIterator.OfLong keys =
+              zOrderKeys.iterator(zOrderKeys.rank(ZOrderKeys.toKey(fromIndex, 0)));
+          while (keys.hasNext()) {
+            long key = keys.nextLong();
+            if (ZOrderKeys.getIndex(key) >= toIndex) {
+              break;
+            }
+            keysToShift.add(key);
+          }
+          keysToShift.forEach(zOrderKeys::remove);
+          for (long key : keysToShift) {
+            long id = ZOrderKeys.getId(key);
+            int index = ZOrderKeys.getIndex(key) + 1;
+            columns.setIndex(columns.findSlot(id), index);
+            zOrderKeys.add(ZOrderKeys.toKey(index, id));
+          }
+          return keysToShift;
+        });
+  }
+
+  private void store(long id, Widget widget) {
+    int slot = columns.findSlot(id);
+    if (slot >= 0) {
+      zOrderKeys.remove(ZOrderKeys.toKey(columns.getIndex(slot), id));
+    }
+    slot = columns.write(id, widget);
+    zOrderKeys.add(ZOrderKeys.toKey(columns.getIndex(slot), id));
+  }
+
+  private void remove(int slot) {
+    zOrderKeys.remove(ZOrderKeys.toKey(columns.getIndex(slot), columns.getId(slot)));
+    columns.delete(slot);
+  }
+
+  private List<Widget> getOrdered(Sort sort, int from, int limit) {
+    PrimitiveIterator.OfLong keys =
+        getDirection(sort) ? zOrderKeys.descendingIterator(from) : zOrderKeys.iterator(from);
+    List<Widget> widgets = new ArrayList<>(Math.min(limit, zOrderKeys.size()));
+    while (keys.hasNext() && widgets.size() < limit) {
+      widgets.add(columns.toWidget(columns.findSlot(ZOrderKeys.getId(keys.nextLong()))));
+    }
+    return widgets;
+  }
+
+  // Returns true for the descending order
+  private static boolean getDirection(Sort sort) {
+    if (sort.equals(SORT_BY_INDEX)) {
+      return false;
+    }
+    if (sort.equals(SORT_BY_INDEX_DESC)) {
+      return true;
+    }
+    throw new IllegalStateException(
+        MappedColumnarWidgetDao.class.getName() + " supports sorting only by index");
+  }
+
+  private long[] findKeysInArea(AreaFilter area) {
+    long[][] keys = {new long[16]};
+    int[] size = {0};
+    forEachSlotInArea(
+        area,
+        slot -> {
+          if (size[0] == keys[0].length) {
+            keys[0] = Arrays.copyOf(keys[0], 2 * size[0]);
+          }
+          keys[0][size[0]++] = ZOrderKeys.toKey(columns.getIndex(slot), columns.getId(slot));
+        });
+    return Arrays.copyOf(keys[0], size[0]);
+  }
+
+  private void forEachSlotInArea(AreaFilter area, IntConsumer action) {
+    int slotCount = columns.getSlotCount();
+    for (int slot = 0; slot < slotCount; slot++) {
+      if (!columns.isFree(slot) && isInside(slot, area)) {
+        action.accept(slot);
+      }
+    }
+  }
+
+  private boolean isInside(int slot, AreaFilter area) {
+    return area.contains(
+        columns.getX(slot), columns.getY(slot), columns.getWidth(slot), columns.getHeight(slot));
+  }
+
+  private static OptionalInt toOptionalIndex(OptionalLong key) {
+    return key.isPresent()
+        ? OptionalInt.of(ZOrderKeys.getIndex(key.getAsLong()))
+        : OptionalInt.empty();
+  }
+
+  private int getSlot(long id) {
+    int slot = columns.findSlot(id);
+    if (slot < 0) {
+      throw new WidgetNotFoundException(id);
+    }
+    return slot;
+  }
+
+  private void checkExisting(long id) {
+    getSlot(id);
+  }
+
+  private <T> T read(Supplier<T> reading) {
+    Lock readLock = lock.readLock();
+    readLock.lock();
+    try {
+      return reading.get();
+    } finally {
+      readLock.unlock();
+    }
+  }
+
+  private <T> T write(Supplier<T> writing) {
+    Lock writeLock = lock.writeLock();
+    writeLock.lock();
+    try {
+      return writing.get();
+    } finally {
+      writeLock.unlock();
+    }
+  }
+}
@@ -0,0 +1,288 @@
+package com.levykin.widget.dao.impl;
+
+import com.levykin.widget.model.Widget;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Widgets in primitive columns of memory-mapped files, so they take no heap and are there again
+ * after a restart. The widget file is a header followed by chunks of slots, a chunk holding its
+ * columns one after another. Slots of deleted widgets are chained in a free list and taken first.
+ * The id file maps widget ids to slots. Absent values of a widget are stored as zero. Not
+ * thread-safe, except for {@link #force()}, which may run while widgets are written.
+ */
+final class MappedWidgetColumns implements Closeable {
+
+  private static final int MAGIC = 0x57494447;
+  private static final int NO_SLOT = -1;
+  private static final long NO_MODIFICATION_DATE = Long.MIN_VALUE;
+
+  private static final int HEADER_BYTES = 4096;
+  private static final int MAGIC_OFFSET = 0;
+  private static final int SLOT_COUNT_OFFSET = 4;
+  private static final int FREE_SLOT_OFFSET = 8;
+  private static final int LAST_ID_OFFSET = 16;
+
+  private static final int CHUNK_SLOTS = 1 << 20;
+  private static final int ID_COLUMN = 0;
+  private static final int X_COLUMN = ID_COLUMN + Long.BYTES * CHUNK_SLOTS;
+  private static final int Y_COLUMN = X_COLUMN + Integer.BYTES * CHUNK_SLOTS;
+  private static final int INDEX_COLUMN = Y_COLUMN + Integer.BYTES * CHUNK_SLOTS;
+  private static final int WIDTH_COLUMN = INDEX_COLUMN + Integer.BYTES * CHUNK_SLOTS;
+  private static final int HEIGHT_COLUMN = WIDTH_COLUMN + Float.BYTES * CHUNK_SLOTS;
+  private static final int TIME_COLUMN = HEIGHT_COLUMN + Float.BYTES * CHUNK_SLOTS;
+  private static final int CHUNK_BYTES = TIME_COLUMN + Long.BYTES * CHUNK_SLOTS;
+
+  // Slots are stored plus one, so the zeroes of a new chunk mean no slot
+  private static final int ID_CHUNK_SLOTS = 1 << 20;
+  private static final int ID_CHUNK_BYTES = Integer.BYTES * ID_CHUNK_SLOTS;
+
+  private final FileChannel widgetFile;
+
+  private final FileChannel idFile;
+
+  private final MappedByteBuffer header;
+
+  // Copied on the rare mapping of a chunk, so forcing walks them while widgets are written
+  private final List<MappedByteBuffer> chunks = new CopyOnWriteArrayList<>();
+
+  private final List<MappedByteBuffer> idChunks = new CopyOnWriteArrayList<>();
+
+  private MappedWidgetColumns(FileChannel widgetFile, FileChannel idFile) throws IOException {
+    this.widgetFile = widgetFile;
+    this.idFile = idFile;
+    header = widgetFile.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+    if (header.getInt(MAGIC_OFFSET) != MAGIC) {
+      header.putInt(SLOT_COUNT_OFFSET, 0);
+      header.putInt(FREE_SLOT_OFFSET, NO_SLOT);
+      header.putLong(LAST_ID_OFFSET, 0);
+      header.putInt(MAGIC_OFFSET, MAGIC);
+    }
+    while ((long) chunks.size() * CHUNK_SLOTS < getSlotCount()) {
+      mapChunk();
+    }
+    while ((long) idChunks.size() * ID_CHUNK_SLOTS <= getLastId()) {
+      mapIdChunk();
+    }
+  }
+
+  static MappedWidgetColumns open(Path directory) {
+    try {
+      Files.createDirectories(directory);
+      return new MappedWidgetColumns(
+          openFile(directory.resolve("widgets")), openFile(directory.resolve("ids")));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /** Slots from zero to this number can hold widgets, some of them are free. */
+  int getSlotCount() {
+    return header.getInt(SLOT_COUNT_OFFSET);
+  }
+
+  long getLastId() {
+    return header.getLong(LAST_ID_OFFSET);
+  }
+
+  long nextId() {
+    long id = getLastId() + 1;
+    // The greatest id is left as a bound of z-order keys
+    if (id >= ZOrderKeys.MAX_ID) {
+      throw new IllegalStateException("Widget ids are exhausted");
+    }
+    header.putLong(LAST_ID_OFFSET, id);
+    return id;
+  }
+
+  /** Returns the slot of the widget or -1 if there is no such widget. */
+  int findSlot(long id) {
+    if (id < 1 || id > getLastId()) {
+      return NO_SLOT;
+    }
+    return getIdChunk(id).getInt(getIdOffset(id)) - 1;
+  }
+
+  boolean isFree(int slot) {
+    return getId(slot) <= 0;
+  }
+
+  long getId(int slot) {
+    return getChunk(slot).getLong(ID_COLUMN + Long.BYTES * (slot % CHUNK_SLOTS));
+  }
+
+  int getX(int slot) {
+    return getChunk(slot).getInt(X_COLUMN + Integer.BYTES * (slot % CHUNK_SLOTS));
+  }
+
+  int getY(int slot) {
+    return getChunk(slot).getInt(Y_COLUMN + Integer.BYTES * (slot % CHUNK_SLOTS));
+  }
+
+  int getIndex(int slot) {
+    return getChunk(slot).getInt(INDEX_COLUMN + Integer.BYTES * (slot % CHUNK_SLOTS));
+  }
+
+  float getWidth(int slot) {
+    return getChunk(slot).getFloat(WIDTH_COLUMN + Float.BYTES * (slot % CHUNK_SLOTS));
+  }
+
+  float getHeight(int slot) {
+    return getChunk(slot).getFloat(HEIGHT_COLUMN + Float.BYTES * (slot % CHUNK_SLOTS));
+  }
+
+  void setIndex(int slot, int index) {
+    getChunk(slot).putInt(INDEX_COLUMN + Integer.BYTES * (slot % CHUNK_SLOTS), index);
+  }
+
+  /** Writes the widget to a free slot, or over itself if it is stored already. */
+  int write(long id, Widget widget) {
+    int slot = findSlot(id);
+    boolean newSlot = slot == NO_SLOT;
+    if (newSlot) {
+      slot = takeFreeSlot();
+    }
+    MappedByteBuffer chunk = getChunk(slot);
+    int position = slot % CHUNK_SLOTS;
+    Date modificationDate = widget.getModificationDate();
+    chunk.putInt(X_COLUMN + Integer.BYTES * position, widget.getX() != null ? widget.getX() : 0);
+    chunk.putInt(Y_COLUMN + Integer.BYTES * position, widget.getY() != null ? widget.getY() : 0);
+    chunk.putInt(
+        INDEX_COLUMN + Integer.BYTES * position,
+        widget.getIndex() != null ? widget.getIndex() : 0);
+    chunk.putFloat(
+        WIDTH_COLUMN + Float.BYTES * position,
+        widget.getWidth() != null ? widget.getWidth() : 0f);
+    chunk.putFloat(
+        HEIGHT_COLUMN + Float.BYTES * position,
+        widget.getHeight() != null ? widget.getHeight() : 0f);
+    chunk.putLong(
+        TIME_COLUMN + Long.BYTES * position,
+        modificationDate != null ? modificationDate.getTime() : NO_MODIFICATION_DATE);
+    // The id goes last, so the slot is taken only with all of its values, and the id is mapped
+    // only to a taken slot
+    chunk.putLong(ID_COLUMN + Long.BYTES * position, id);
+    if (newSlot) {
+      getIdChunk(id).putInt(getIdOffset(id), slot + 1);
+    }
+    return slot;
+  }
+
+  /** Maps the id of a taken slot to it, as a crash right after the slot is taken leaves it out. */
+  void remap(int slot) {
+    long id = getId(slot);
+    getIdChunk(id).putInt(getIdOffset(id), slot + 1);
+  }
+
+  void delete(int slot) {
+    long id = getId(slot);
+    getIdChunk(id).putInt(getIdOffset(id), 0);
+    // A free slot keeps the next free one in place of the id: zero or less, -1 - id is the slot
+    getChunk(slot)
+        .putLong(
+            ID_COLUMN + Long.BYTES * (slot % CHUNK_SLOTS),
+            -1L - header.getInt(FREE_SLOT_OFFSET));
+    header.putInt(FREE_SLOT_OFFSET, slot);
+  }
+
+  Widget toWidget(int slot) {
+    MappedByteBuffer chunk = getChunk(slot);
+    int position = slot % CHUNK_SLOTS;
+    Widget widget = new Widget();
+    widget.setId(chunk.getLong(ID_COLUMN + Long.BYTES * position));
+    widget.setX(chunk.getInt(X_COLUMN + Integer.BYTES * position));
+    widget.setY(chunk.getInt(Y_COLUMN + Integer.BYTES * position));
+    widget.setIndex(chunk.getInt(INDEX_COLUMN + Integer.BYTES * position));
+    widget.setWidth(chunk.getFloat(WIDTH_COLUMN + Float.BYTES * position));
+    widget.setHeight(chunk.getFloat(HEIGHT_COLUMN + Float.BYTES * position));
+    long modificationTime = chunk.getLong(TIME_COLUMN + Long.BYTES * position);
+    if (modificationTime != NO_MODIFICATION_DATE) {
+      widget.setModificationDate(new Date(modificationTime));
+    }
+    return widget;
+  }
+
+  /** Writes the changed pages to disk. */
+  void force() {
+    header.force();
+    chunks.forEach(MappedByteBuffer::force);
+    idChunks.forEach(MappedByteBuffer::force);
+  }
+
+  @Override
+  public void close() {
+    force();
+    try {
+      widgetFile.close();
+      idFile.close();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private int takeFreeSlot() {
+    int slot = header.getInt(FREE_SLOT_OFFSET);
+    if (slot != NO_SLOT) {
+      header.putInt(FREE_SLOT_OFFSET, (int) (-1L - getId(slot)));
+      return slot;
+    }
+    slot = getSlotCount();
+    if (slot == Integer.MAX_VALUE) {
+      throw new IllegalStateException("Widget slots are exhausted");
+    }
+    if (slot == chunks.size() * CHUNK_SLOTS) {
+      mapChunk();
+    }
+    header.putInt(SLOT_COUNT_OFFSET, slot + 1);
+    return slot;
+  }
+
+  private MappedByteBuffer getChunk(int slot) {
+    return chunks.get(slot / CHUNK_SLOTS);
+  }
+
+  private MappedByteBuffer getIdChunk(long id) {
+    while ((long) idChunks.size() * ID_CHUNK_SLOTS <= id) {
+      mapIdChunk();
+    }
+    return idChunks.get((int) (id / ID_CHUNK_SLOTS));
+  }
+
+  private static int getIdOffset(long id) {
+    return (int) (id % ID_CHUNK_SLOTS) * Integer.BYTES;
+  }
+
+  // Mapping past the end of a file extends it
+  private void mapChunk() {
+    long position = HEADER_BYTES + (long) chunks.size() * CHUNK_BYTES;
+    chunks.add(map(widgetFile, position, CHUNK_BYTES));
+  }
+
+  private void mapIdChunk() {
+    long position = (long) idChunks.size() * ID_CHUNK_BYTES;
+    idChunks.add(map(idFile, position, ID_CHUNK_BYTES));
+  }
+
+  private static MappedByteBuffer map(FileChannel file, long position, int size) {
+    try {
+      return file.map(FileChannel.MapMode.READ_WRITE, position, size);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static FileChannel openFile(Path path) throws IOException {
+    return FileChannel.open(
+        path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+  }
+}
@@ -0,0 +1,168 @@
+package com.levykin.widget.dao.impl;
+
+import com.levykin.widget.model.Widget;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Widgets by id evicted in about the least recently used order when there are more of them than
+ * the maximum size. Widgets are copied in and out, so readers can not change a cached one.
+ *
+ * <p>Widgets are split into segments by id, each with its own lock and its share of the maximum
+ * size, so reads of different widgets rarely wait for each other. A segment keeps its widgets by
+ * index as well, so an index shift invalidates only the widgets it moves.
+ *
+ * <p>A widget loaded from the store right before a change could be put after the change has
+ * invalidated it. So every invalidation starts a new generation before removing widgets, and a
+ * loaded widget is put only if the generation is still the one seen before loading it.
+ */
+final class WidgetCache {
+
+  private final Segment[] segments = new Segment[16];
+
+  private final AtomicLong generation = new AtomicLong();
+
+  private final LongAdder hitCount = new LongAdder();
+
+  private final LongAdder missCount = new LongAdder();
+
+  private final LongAdder evictionCount = new LongAdder();
+
+  WidgetCache(int maxSize) {
+    int segmentMaxSize = (maxSize + segments.length - 1) / segments.length;
+    Arrays.setAll(segments, i -> new Segment(segmentMaxSize));
+  }
+
+  /** Returns a copy of the cached widget or null, counting a hit or a miss. */
+  Widget get(long id) {
+    Widget widget = getSegment(id).get(id);
+    if (widget == null) {
+      missCount.increment();
+      return null;
+    }
+    hitCount.increment();
+    return widget;
+  }
+
+  boolean contains(long id) {
+    return getSegment(id).contains(id);
+  }
+
+  long getGeneration() {
+    return generation.get();
+  }
+
+  /** Puts a widget loaded when the given generation was the current one. */
+  void put(long loadGeneration, Widget widget) {
+    getSegment(widget.getId()).put(loadGeneration, widget);
+  }
+
+  void invalidate(long id) {
+    generation.incrementAndGet();
+    getSegment(id).remove(id);
+  }
+
+  void invalidate(Collection<Long> ids) {
+    generation.incrementAndGet();
+    ids.forEach(id -> getSegment(id).remove(id));
+  }
+
+  /** Invalidates widgets with indexes from fromIndex inclusive to toIndex exclusive. */
+  void invalidateIndexes(int fromIndex, int toIndex) {
+    generation.incrementAndGet();
+    if (fromIndex >= toIndex) {
+      return;
+    }
+    for (Segment segment : segments) {
+      segment.removeIndexes(fromIndex, toIndex);
+    }
+  }
+
+  int size() {
+    return Arrays.stream(segments).mapToInt(Segment::size).sum();
+  }
+
+  long getHitCount() {
+    return hitCount.sum();
+  }
+
+  long getMissCount() {
+    return missCount.sum();
+  }
+
+  long getEvictionCount() {
+    return evictionCount.sum();
+  }
+
+  private Segment getSegment(long id) {
+    return segments[Long.hashCode(id) & (segments.length - 1)];
+  }
+
+  private final class Segment {
+
+    private final int maxSize;
+
+    private final LinkedHashMap<Long, Widget> widgets = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final NavigableMap<Integer, Long> idsByIndex = new TreeMap<>();
+
+    private Segment(int maxSize) {
+      this.maxSize = maxSize;
+    }
+
+    private synchronized Widget get(long id) {
+      Widget widget = widgets.get(id);
+      return widget != null ? new Widget(widget) : null;
+    }
+
+    private synchronized boolean contains(long id) {
+      return widgets.containsKey(id);
+    }
+
+    // Widgets without an index can not be found by it, so they are not kept
+    private synchronized void put(long loadGeneration, Widget widget) {
+      if (loadGeneration != generation.get() || maxSize == 0 || widget.getIndex() == null) {
+        return;
+      }
+      remove(widget.getId());
+      // The index map holds one widget per index, another one with it is out of date
+      Long previousId = idsByIndex.get(widget.getIndex());
+      if (previousId != null) {
+        remove(previousId);
+      }
+      widgets.put(widget.getId(), new Widget(widget));
+      idsByIndex.put(widget.getIndex(), widget.getId());
+      if (widgets.size() > maxSize) {
+        Iterator<Widget> eldest = widgets.values().iterator();
+        idsByIndex.remove(eldest.next().getIndex());
+        eldest.remove();
+        evictionCount.increment();
+      }
+    }
+
+    private synchronized void remove(long id) {
+      Widget widget = widgets.remove(id);
+      if (widget != null) {
+        idsByIndex.remove(widget.getIndex());
+      }
+    }
+
+    private synchronized void removeIndexes(int fromIndex, int toIndex) {
+      Map<Integer, Long> ids = idsByIndex.subMap(fromIndex, toIndex);
+      ids.values().forEach(widgets::remove);
+      ids.clear();
+    }
+
+    private synchronized int size() {
+      return widgets.size();
+    }
+  }
+}
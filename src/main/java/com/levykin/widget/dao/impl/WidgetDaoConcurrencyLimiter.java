@@ -0,0 +1,76 @@
+package com.levykin.widget.dao.impl;
+
+import com.levykin.widget.dao.WidgetDao;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.core.Ordered;
+import org.springframework.stereotype.Component;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lets only so many calls into the widget DAO at once, the others wait in the order they came.
+ * A permit is taken before a transaction starts, so callers queue here instead of holding threads
+ * while waiting for a database connection. Zero, the default, lets all calls in.
+ */
+@Component
+class WidgetDaoConcurrencyLimiter implements BeanPostProcessor, Ordered {
+
+  private final int maxConcurrentCalls;
+
+  private final MeterRegistry registry;
+
+  // Lazy, like the registry of the timing post processor
+  WidgetDaoConcurrencyLimiter(
+      @Value("${widget-application.dao.max-concurrent-calls:0}") int maxConcurrentCalls,
+      @Lazy MeterRegistry registry) {
+    this.maxConcurrentCalls = maxConcurrentCalls;
+    this.registry = registry;
+  }
+
+  @Override
+  public int getOrder() {
+    return WidgetDaoTimingPostProcessor.ORDER + 1;
+  }
+
+  @Override
+  public Object postProcessAfterInitialization(Object bean, String beanName) {
+    if (!(bean instanceof WidgetDao) || maxConcurrentCalls <= 0) {
+      return bean;
+    }
+    Semaphore permits = new Semaphore(maxConcurrentCalls, true);
+    Timer permitWait = registry.timer("widget.dao.permit.wait");
+    return Proxy.newProxyInstance(
+        WidgetDao.class.getClassLoader(),
+        new Class<?>[] {WidgetDao.class},
+        (proxy, method, args) -> {
+          if (method.getDeclaringClass() != WidgetDao.class) {
+            return invoke(bean, method, args);
+          }
+          long start = System.nanoTime();
+          permits.acquireUninterruptibly();
+          permitWait.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+          try {
+            return invoke(bean, method, args);
+          } finally {
+            permits.release();
+          }
+        });
+  }
+
+  private static Object invoke(Object bean, Method method, Object[] args)
+      throws Throwable {
+    try {
+      return method.invoke(bean, args);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+}
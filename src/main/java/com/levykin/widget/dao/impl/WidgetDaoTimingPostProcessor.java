@@ -0,0 +1,83 @@
+package com.levykin.widget.dao.impl;
+
+import com.levykin.widget.dao.WidgetDao;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.core.Ordered;
+import org.springframework.stereotype.Component;
+import org.springframework.util.ClassUtils;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Times every call of the widget DAO by backend and method, so storages can be compared on the
+ * same workload. Overloads are told apart by their parameter types.
+ */
+@Component
+class WidgetDaoTimingPostProcessor implements BeanPostProcessor, Ordered {
+
+  // Wraps the DAO before the concurrency limiter does, so it still sees the backend class and
+  // permit waits are not timed as calls
+  static final int ORDER = 0;
+
+  private final MeterRegistry registry;
+
+  // Lazy, so the registry is not created early, before its own post processors are registered
+  WidgetDaoTimingPostProcessor(@Lazy MeterRegistry registry) {
+    this.registry = registry;
+  }
+
+  @Override
+  public int getOrder() {
+    return ORDER;
+  }
+
+  @Override
+  public Object postProcessAfterInitialization(Object bean, String beanName) {
+    if (!(bean instanceof WidgetDao)) {
+      return bean;
+    }
+    String backend = ClassUtils.getUserClass(bean).getSimpleName();
+    Map<Method, Timer> timers = new HashMap<>();
+    for (Method method : WidgetDao.class.getMethods()) {
+      timers.put(
+          method,
+          Timer.builder("widget.dao.calls")
+              .tag("backend", backend)
+              .tag("method", getSignature(method))
+              .register(registry));
+    }
+    return Proxy.newProxyInstance(
+        WidgetDao.class.getClassLoader(),
+        new Class<?>[] {WidgetDao.class},
+        (proxy, method, args) -> {
+          Timer timer = timers.get(method);
+          long start = System.nanoTime();
+          try {
+            return method.invoke(bean, args);
+          } catch (InvocationTargetException e) {
+            throw e.getCause();
+          } finally {
+            // Methods of Object are not timed
+            if (timer != null) {
+              timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+          }
+        });
+  }
+
+  private static String getSignature(Method method) {
+    return Arrays.stream(method.getParameterTypes())
+        .map(Class::getSimpleName)
+        .collect(Collectors.joining(",", method.getName() + "(", ")"));
+  }
+}
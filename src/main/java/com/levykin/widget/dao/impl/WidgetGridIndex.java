@@ -0,0 +1,141 @@
+package com.levykin.widget.dao.impl;
+
+import com.levykin.widget.model.AreaFilter;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Uniform grid over widget origins. A widget lies inside an area only if its origin (x, y) does,
+ * so the cells covering the area hold every candidate for it, and each widget is kept in a single
+ * cell whatever its size. Writes of a cell are serialized by the map, reads are lock-free.
+ *
+ * <p>Each cell also bounds the right and bottom edges of its widgets, so a cell can be counted as a
+ * whole when all of its widgets are known to lie inside an area.
+ */
+class WidgetGridIndex {
+
+  private final int cellSize;
+
+  private final Map<Long, Cell> cells = new ConcurrentHashMap<>();
+
+  WidgetGridIndex(int cellSize) {
+    this.cellSize = cellSize;
+  }
+
+  // Within the computation, so concurrent writers of a cell never lose a raised bound
+  void add(WidgetSnapshot widget) {
+    cells.compute(
+        getCellKey(widget), (key, cell) -> (cell != null ? cell : new Cell(key)).add(widget));
+  }
+
+  void remove(WidgetSnapshot widget) {
+    cells.computeIfPresent(
+        getCellKey(widget),
+        (key, cell) -> {
+          cell.widgets.remove(widget);
+          return cell.widgets.isEmpty() ? null : cell;
+        });
+  }
+
+  /** Returns widgets which origins are in the cells covering the area, in no particular order. */
+  Stream<WidgetSnapshot> findCandidates(AreaFilter area) {
+    return findCells(area).flatMap(cell -> cell.widgets.stream());
+  }
+
+  /** Counts widgets inside the area checking only those of the cells on its border. */
+  long count(AreaFilter area) {
+    return findCells(area)
+        .mapToLong(
+            cell ->
+                isInside(cell, area)
+                    ? cell.widgets.size()
+                    : cell.widgets.stream().filter(widget -> widget.isInside(area)).count())
+        .sum();
+  }
+
+  private Stream<Cell> findCells(AreaFilter area) {
+    int fromCellX = getCell(area.getX());
+    int fromCellY = getCell(area.getY());
+    int toCellX = getCell((long) area.getX() + area.getWidth());
+    int toCellY = getCell((long) area.getY() + area.getHeight());
+    long areaCells = ((long) toCellX - fromCellX + 1) * ((long) toCellY - fromCellY + 1);
+    if (areaCells > cells.size()) {
+      // The area is larger than the occupied part of the grid, so walk the occupied cells only
+      return cells.entrySet().stream()
+          .filter(
+              cell -> {
+                int cellX = getCellX(cell.getKey());
+                int cellY = getCellY(cell.getKey());
+                return cellX >= fromCellX
+                    && cellX <= toCellX
+                    && cellY >= fromCellY
+                    && cellY <= toCellY;
+              })
+          .map(Map.Entry::getValue);
+    }
+    Stream.Builder<Cell> coveringCells = Stream.builder();
+    for (int cellX = fromCellX; cellX <= toCellX; cellX++) {
+      for (int cellY = fromCellY; cellY <= toCellY; cellY++) {
+        Cell cell = cells.get(toCellKey(cellX, cellY));
+        if (cell != null) {
+          coveringCells.add(cell);
+        }
+      }
+    }
+    return coveringCells.build();
+  }
+
+  private boolean isInside(Cell cell, AreaFilter area) {
+    return (long) getCellX(cell.key) * cellSize >= area.getX()
+        && (long) getCellY(cell.key) * cellSize >= area.getY()
+        && cell.maxRight <= area.getX() + area.getWidth()
+        && cell.maxBottom <= area.getY() + area.getHeight();
+  }
+
+  private long getCellKey(WidgetSnapshot widget) {
+    return toCellKey(getCell(widget.getX()), getCell(widget.getY()));
+  }
+
+  private int getCell(long coordinate) {
+    return (int) Math.floorDiv(coordinate, cellSize);
+  }
+
+  private static long toCellKey(int cellX, int cellY) {
+    return ((long) cellX << 32) | (cellY & 0xFFFFFFFFL);
+  }
+
+  private static int getCellX(long cellKey) {
+    return (int) (cellKey >> 32);
+  }
+
+  private static int getCellY(long cellKey) {
+    return (int) cellKey;
+  }
+
+  private static final class Cell {
+
+    private final long key;
+
+    private final Set<WidgetSnapshot> widgets = ConcurrentHashMap.newKeySet();
+
+    // Bounds are only raised while the cell is occupied. They are set before a widget becomes
+    // visible in the cell, so readers never see a widget beyond them.
+    private volatile float maxRight = Float.NEGATIVE_INFINITY;
+
+    private volatile float maxBottom = Float.NEGATIVE_INFINITY;
+
+    private Cell(long key) {
+      this.key = key;
+    }
+
+    private Cell add(WidgetSnapshot widget) {
+      maxRight = Math.max(maxRight, widget.getRight());
+      maxBottom = Math.max(maxBottom, widget.getBottom());
+      widgets.add(widget);
+      return this;
+    }
+  }
+}
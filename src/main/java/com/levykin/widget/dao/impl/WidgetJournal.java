@@ -0,0 +1,462 @@
+package com.levykin.widget.dao.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Makes the java in-memory storage durable. Changes are appended to a log buffer, which a
+ * background thread writes and syncs to disk in batches, so writes wait for neither. From time to
+ * time the log starts a new segment and the store as of that moment is written to a snapshot,
+ * then older snapshots and segments are removed. On start the store is rebuilt from the latest
+ * snapshot and the log segments after it.
+ *
+ * <p>Changes made within the sync interval before a crash are lost, or since the disk started to
+ * fail, while failed flushes are retried. Changes of the same widget have to be appended in their
+ * order, changes of different widgets may be appended concurrently.
+ */
+class WidgetJournal implements Closeable {
+
+  /** Receives the logged changes on recovery. */
+  interface Replay {
+
+    void store(WidgetSnapshot widget);
+
+    void delete(long id);
+
+    void shift(int fromIndex, int toIndex);
+  }
+
+  private static final byte STORE = 1;
+  private static final byte DELETE = 2;
+  private static final byte SHIFT = 3;
+
+  private static final String LOG_PREFIX = "log-";
+  private static final String SNAPSHOT_PREFIX = "snapshot-";
+  private static final String TEMPORARY_SUFFIX = ".tmp";
+
+  private static final int SNAPSHOT_HEADER_BYTES = 2 * Long.BYTES;
+  private static final int BUFFER_BYTES = 64 * 1024;
+
+  private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+  private final Path directory;
+
+  private final ScheduledExecutorService executor =
+      Executors.newScheduledThreadPool(
+          2,
+          task -> {
+            Thread thread = new Thread(task, "widget-journal");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  // Appends fill the pending buffer while the written one goes to disk, then they are swapped.
+  // The records of ended segments wait for the next flush, which writes them in order.
+  private final Object bufferLock = new Object();
+  private final CRC32 recordChecksum = new CRC32();
+  private final Deque<ByteBuffer> endedSegments = new ArrayDeque<>();
+  private ByteBuffer pendingRecords = ByteBuffer.allocate(BUFFER_BYTES);
+  private ByteBuffer writtenRecords = ByteBuffer.allocate(BUFFER_BYTES);
+  private long appendedSegment;
+
+  private final Object logLock = new Object();
+  private FileChannel log;
+  private long segment;
+  // Set while the written buffer holds records which are not surely on disk
+  private boolean flushFailed;
+  // Set while the written buffer holds the last records of the open segment
+  private boolean writtenEndsSegment;
+
+  WidgetJournal(Path directory) {
+    this.directory = directory;
+  }
+
+  /**
+   * Passes the latest snapshot and the logged changes after it to the replay and starts a new log
+   * segment. Returns the last widget id given before the snapshot.
+   */
+  long recover(Replay replay) {
+    try {
+      Files.createDirectories(directory);
+      long lastId = 0;
+      long snapshotSegment = 0;
+      List<Long> snapshotSegments = listSegments(SNAPSHOT_PREFIX);
+      for (int i = snapshotSegments.size() - 1; i >= 0; i--) {
+        ByteBuffer snapshot = readChecked(getPath(SNAPSHOT_PREFIX, snapshotSegments.get(i)));
+        if (snapshot != null) {
+          snapshotSegment = snapshot.getLong();
+          lastId = snapshot.getLong();
+          while (snapshot.hasRemaining()) {
+            replay.store(WidgetSnapshot.readFrom(snapshot));
+          }
+          break;
+        }
+        logger.warn("Skipping corrupted snapshot {}", snapshotSegments.get(i));
+      }
+      long lastSegment = snapshotSegment;
+      boolean complete = true;
+      for (long logSegment : listSegments(LOG_PREFIX)) {
+        lastSegment = Math.max(lastSegment, logSegment);
+        // Later segments depend on the lost changes, so they are not replayed
+        if (complete && logSegment >= snapshotSegment) {
+          complete = replayLog(logSegment, replay);
+          if (!complete) {
+            logger.warn("Log segment {} is incomplete, the changes after it are lost", logSegment);
+          }
+        }
+      }
+      synchronized (logLock) {
+        segment = lastSegment;
+        openNextSegment();
+        synchronized (bufferLock) {
+          appendedSegment = segment;
+        }
+      }
+      return lastId;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /** Syncs the log and takes snapshots in the background from now on. */
+  void schedule(long syncIntervalMillis, long snapshotIntervalSeconds, Runnable takingSnapshot) {
+    executor.scheduleWithFixedDelay(
+        () -> runLogged(this::flush),
+        syncIntervalMillis,
+        syncIntervalMillis,
+        TimeUnit.MILLISECONDS);
+    executor.scheduleWithFixedDelay(
+        () -> runLogged(takingSnapshot),
+        snapshotIntervalSeconds,
+        snapshotIntervalSeconds,
+        TimeUnit.SECONDS);
+  }
+
+  void logStore(WidgetSnapshot widget) {
+    synchronized (bufferLock) {
+      ByteBuffer records = reserve(1 + WidgetSnapshot.BYTES);
+      int start = records.position();
+      records.put(STORE);
+      widget.writeTo(records);
+      seal(records, start);
+    }
+  }
+
+  void logDelete(long id) {
+    synchronized (bufferLock) {
+      ByteBuffer records = reserve(1 + Long.BYTES);
+      int start = records.position();
+      records.put(DELETE).putLong(id);
+      seal(records, start);
+    }
+  }
+
+  void logShift(int fromIndex, int toIndex) {
+    synchronized (bufferLock) {
+      ByteBuffer records = reserve(1 + 2 * Integer.BYTES);
+      int start = records.position();
+      records.put(SHIFT).putInt(fromIndex).putInt(toIndex);
+      seal(records, start);
+    }
+  }
+
+  /**
+   * Writes the appended changes to the log and syncs it, the ended segments first. The records of a
+   * failed flush are kept and written first by the next one, since the changes after them are
+   * replayed on top of them.
+   */
+  void flush() {
+    synchronized (logLock) {
+      try {
+        if (flushFailed) {
+          writeRecords(true);
+        }
+        endSegmentIfWritten();
+        ByteBuffer endedRecords;
+        while ((endedRecords = pollEndedSegment()) != null) {
+          writtenRecords = endedRecords;
+          writtenRecords.flip();
+          writtenEndsSegment = true;
+          writeRecords(false);
+          endSegmentIfWritten();
+        }
+        synchronized (bufferLock) {
+          ByteBuffer records = pendingRecords;
+          pendingRecords = writtenRecords;
+          writtenRecords = records;
+        }
+        writtenRecords.flip();
+        writeRecords(false);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  /**
+   * Ends the log segment with the changes appended so far and continues it in a new one, which
+   * gets the changes appended from now on. A snapshot of the store as of this moment has to be
+   * written with the returned segment. No changes may be appended meanwhile. Nothing is written
+   * here, the ended segment goes to disk with the next flush, before any of the new one.
+   */
+  long startSegment() {
+    synchronized (bufferLock) {
+      endedSegments.add(pendingRecords);
+      pendingRecords = ByteBuffer.allocate(BUFFER_BYTES);
+      return ++appendedSegment;
+    }
+  }
+
+  /** Writes a snapshot taken at the start of the segment and removes older files. */
+  void writeSnapshot(long snapshotSegment, long lastId, Iterator<WidgetSnapshot> widgets) {
+    Path snapshot = getPath(SNAPSHOT_PREFIX, snapshotSegment);
+    Path temporary = snapshot.resolveSibling(snapshot.getFileName() + TEMPORARY_SUFFIX);
+    try {
+      try (FileChannel channel =
+          FileChannel.open(
+              temporary,
+              StandardOpenOption.CREATE,
+              StandardOpenOption.TRUNCATE_EXISTING,
+              StandardOpenOption.WRITE)) {
+        CRC32 checksum = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES);
+        buffer.putLong(snapshotSegment).putLong(lastId);
+        while (widgets.hasNext()) {
+          if (buffer.remaining() < WidgetSnapshot.BYTES) {
+            writeChecked(channel, buffer, checksum);
+          }
+          widgets.next().writeTo(buffer);
+        }
+        writeChecked(channel, buffer, checksum);
+        buffer.putInt((int) checksum.getValue());
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+        channel.force(true);
+      }
+      Files.move(temporary, snapshot, StandardCopyOption.ATOMIC_MOVE);
+      for (long olderSegment : listSegments(SNAPSHOT_PREFIX)) {
+        if (olderSegment < snapshotSegment) {
+          Files.delete(getPath(SNAPSHOT_PREFIX, olderSegment));
+        }
+      }
+      for (long olderSegment : listSegments(LOG_PREFIX)) {
+        if (olderSegment < snapshotSegment) {
+          Files.delete(getPath(LOG_PREFIX, olderSegment));
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @Override
+  public void close() {
+    executor.shutdown();
+    synchronized (logLock) {
+      flush();
+      try {
+        log.close();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  /** Stops the background work and closes the log without flushing it, as a crash does. */
+  void abandon() {
+    executor.shutdownNow();
+    try {
+      executor.awaitTermination(1, TimeUnit.MINUTES);
+      synchronized (logLock) {
+        log.close();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private boolean replayLog(long logSegment, Replay replay) throws IOException {
+    ByteBuffer records = ByteBuffer.wrap(Files.readAllBytes(getPath(LOG_PREFIX, logSegment)));
+    CRC32 checksum = new CRC32();
+    while (records.hasRemaining()) {
+      int start = records.position();
+      byte type = records.get();
+      int payloadBytes = getPayloadBytes(type);
+      if (payloadBytes < 0 || records.remaining() < payloadBytes + Integer.BYTES) {
+        return false;
+      }
+      checksum.reset();
+      checksum.update(records.array(), start, 1 + payloadBytes);
+      int payloadStart = records.position();
+      records.position(payloadStart + payloadBytes);
+      if (records.getInt() != (int) checksum.getValue()) {
+        return false;
+      }
+      int end = records.position();
+      records.position(payloadStart);
+      switch (type) {
+        case STORE:
+          replay.store(WidgetSnapshot.readFrom(records));
+          break;
+        case DELETE:
+          replay.delete(records.getLong());
+          break;
+        default:
+          replay.shift(records.getInt(), records.getInt());
+      }
+      records.position(end);
+    }
+    return true;
+  }
+
+  private static int getPayloadBytes(byte type) {
+    switch (type) {
+      case STORE:
+        return WidgetSnapshot.BYTES;
+      case DELETE:
+        return Long.BYTES;
+      case SHIFT:
+        return 2 * Integer.BYTES;
+      default:
+        return -1;
+    }
+  }
+
+  // Returns the content after the header or null if the checksum does not match
+  private static ByteBuffer readChecked(Path path) throws IOException {
+    byte[] bytes = Files.readAllBytes(path);
+    int contentBytes = bytes.length - Integer.BYTES;
+    if (contentBytes < SNAPSHOT_HEADER_BYTES
+        || (contentBytes - SNAPSHOT_HEADER_BYTES) % WidgetSnapshot.BYTES != 0) {
+      return null;
+    }
+    CRC32 checksum = new CRC32();
+    checksum.update(bytes, 0, contentBytes);
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    if (buffer.getInt(contentBytes) != (int) checksum.getValue()) {
+      return null;
+    }
+    buffer.limit(contentBytes);
+    return buffer;
+  }
+
+  private static void writeChecked(FileChannel channel, ByteBuffer buffer, CRC32 checksum)
+      throws IOException {
+    checksum.update(buffer.array(), 0, buffer.position());
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    buffer.clear();
+  }
+
+  /** Opens a new log segment, or an existing one to append to it. */
+  FileChannel openLog(Path path, boolean existing) throws IOException {
+    return existing
+        ? FileChannel.open(path, StandardOpenOption.APPEND)
+        : FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+  }
+
+  private ByteBuffer pollEndedSegment() {
+    synchronized (bufferLock) {
+      return endedSegments.poll();
+    }
+  }
+
+  // Cleared only once the next segment is open, so a failed opening is retried by the next flush
+  private void endSegmentIfWritten() throws IOException {
+    if (writtenEndsSegment) {
+      log.close();
+      openNextSegment();
+      writtenEndsSegment = false;
+    }
+  }
+
+  // A retry syncs even if all the records were written, as the failure could be the sync. An
+  // interrupted write closes the log, so it is opened again.
+  private void writeRecords(boolean retry) throws IOException {
+    flushFailed = true;
+    if (!log.isOpen()) {
+      log = openLog(getPath(LOG_PREFIX, segment), true);
+    }
+    if (retry || writtenRecords.hasRemaining()) {
+      while (writtenRecords.hasRemaining()) {
+        log.write(writtenRecords);
+      }
+      log.force(false);
+    }
+    writtenRecords.clear();
+    flushFailed = false;
+  }
+
+  private ByteBuffer reserve(int payloadBytes) {
+    int recordBytes = payloadBytes + Integer.BYTES;
+    if (pendingRecords.remaining() < recordBytes) {
+      // The disk falls behind, so keep the records in a larger buffer
+      ByteBuffer records =
+          ByteBuffer.allocate(Math.max(2 * pendingRecords.capacity(), recordBytes));
+      pendingRecords.flip();
+      records.put(pendingRecords);
+      pendingRecords = records;
+    }
+    return pendingRecords;
+  }
+
+  private void seal(ByteBuffer records, int start) {
+    recordChecksum.reset();
+    recordChecksum.update(records.array(), start, records.position() - start);
+    records.putInt((int) recordChecksum.getValue());
+  }
+
+  private void openNextSegment() throws IOException {
+    log = openLog(getPath(LOG_PREFIX, segment + 1), false);
+    segment++;
+  }
+
+  private List<Long> listSegments(String prefix) throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files
+          .map(file -> file.getFileName().toString())
+          .filter(name -> name.startsWith(prefix) && !name.endsWith(TEMPORARY_SUFFIX))
+          .map(name -> Long.parseLong(name.substring(prefix.length())))
+          .sorted()
+          .collect(Collectors.toList());
+    }
+  }
+
+  private Path getPath(String prefix, long fileSegment) {
+    return directory.resolve(prefix + fileSegment);
+  }
+
+  private void runLogged(Runnable task) {
+    try {
+      task.run();
+    } catch (RuntimeException e) {
+      logger.error(e.getMessage(), e);
+    }
+  }
+}
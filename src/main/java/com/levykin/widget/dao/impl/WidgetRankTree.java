@@ -0,0 +1,278 @@
+package com.levykin.widget.dao.impl;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import static com.levykin.widget.dao.impl.WidgetSnapshot.Z_ORDER;
+
+/**
+ * Widgets in {@link WidgetSnapshot#Z_ORDER} kept in an AVL tree whose nodes know the size of their
+ * subtree, so the rank of a widget and the widget at a rank are found in O(log n).
+ *
+ * <p>Nodes are immutable and a change copies the path from the root, so readers walk a consistent
+ * version of the tree without locks. A change swaps the root only if no other one has swapped it
+ * in the meantime and is redone otherwise, so changes of different widgets run concurrently.
+ * Changes of the same widget have to be made by one thread at a time.
+ */
+final class WidgetRankTree {
+
+  private final AtomicReference<Node> root = new AtomicReference<>();
+
+  int size() {
+    return size(root.get());
+  }
+
+  void add(WidgetSnapshot widget) {
+    change(node -> insert(node, widget));
+  }
+
+  void remove(WidgetSnapshot widget) {
+    change(node -> delete(node, widget));
+  }
+
+  /** Replaces the previous version of a widget in one step, so readers never miss it. */
+  void replace(WidgetSnapshot previous, WidgetSnapshot widget) {
+    change(node -> insert(delete(node, previous), widget));
+  }
+
+  // Redoing a change is cheap, it copies only a path of O(log n) nodes
+  private void change(UnaryOperator<Node> change) {
+    Node version;
+    Node changedVersion;
+    do {
+      version = root.get();
+      changedVersion = change.apply(version);
+    } while (!root.compareAndSet(version, changedVersion));
+  }
+
+  Optional<WidgetSnapshot> first() {
+    Node node = root.get();
+    if (node == null) {
+      return Optional.empty();
+    }
+    while (node.left != null) {
+      node = node.left;
+    }
+    return Optional.of(node.widget);
+  }
+
+  Optional<WidgetSnapshot> last() {
+    Node node = root.get();
+    if (node == null) {
+      return Optional.empty();
+    }
+    while (node.right != null) {
+      node = node.right;
+    }
+    return Optional.of(node.widget);
+  }
+
+  /** Number of widgets ordered before the key. */
+  int rank(WidgetSnapshot key) {
+    int rank = 0;
+    Node node = root.get();
+    while (node != null) {
+      if (Z_ORDER.compare(key, node.widget) <= 0) {
+        node = node.left;
+      } else {
+        rank += size(node.left) + 1;
+        node = node.right;
+      }
+    }
+    return rank;
+  }
+
+  /** Widgets in z-order starting from the given rank. */
+  Stream<WidgetSnapshot> stream(int fromRank) {
+    Node version = root.get();
+    return toStream(new AscendingIterator(version, fromRank), size(version) - fromRank);
+  }
+
+  /** Widgets in reverse z-order skipping the given number of the topmost ones. */
+  Stream<WidgetSnapshot> descendingStream(int skipped) {
+    Node version = root.get();
+    int fromRank = size(version) - 1 - skipped;
+    return toStream(new DescendingIterator(version, fromRank), fromRank + 1);
+  }
+
+  private static Stream<WidgetSnapshot> toStream(Iterator<WidgetSnapshot> iterator, int size) {
+    int characteristics = Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.IMMUTABLE;
+    return StreamSupport.stream(
+        Spliterators.spliterator(iterator, Math.max(size, 0), characteristics), false);
+  }
+
+  private static Node insert(Node node, WidgetSnapshot widget) {
+    if (node == null) {
+      return new Node(widget, null, null);
+    }
+    int comparison = Z_ORDER.compare(widget, node.widget);
+    if (comparison < 0) {
+      return balance(node.widget, insert(node.left, widget), node.right);
+    }
+    if (comparison > 0) {
+      return balance(node.widget, node.left, insert(node.right, widget));
+    }
+    return new Node(widget, node.left, node.right);
+  }
+
+  private static Node delete(Node node, WidgetSnapshot widget) {
+    if (node == null) {
+      return null;
+    }
+    int comparison = Z_ORDER.compare(widget, node.widget);
+    if (comparison < 0) {
+      return balance(node.widget, delete(node.left, widget), node.right);
+    }
+    if (comparison > 0) {
+      return balance(node.widget, node.left, delete(node.right, widget));
+    }
+    if (node.left == null) {
+      return node.right;
+    }
+    if (node.right == null) {
+      return node.left;
+    }
+    Node successor = node.right;
+    while (successor.left != null) {
+      successor = successor.left;
+    }
+    return balance(successor.widget, node.left, delete(node.right, successor.widget));
+  }
+
+  private static Node balance(WidgetSnapshot widget, Node left, Node right) {
+    if (height(left) > height(right) + 1) {
+      if (height(left.left) >= height(left.right)) {
+        return new Node(left.widget, left.left, new Node(widget, left.right, right));
+      }
+      Node middle = left.right;
+      return new Node(
+          middle.widget,
+          new Node(left.widget, left.left, middle.left),
+          new Node(widget, middle.right, right));
+    }
+    if (height(right) > height(left) + 1) {
+      if (height(right.right) >= height(right.left)) {
+        return new Node(right.widget, new Node(widget, left, right.left), right.right);
+      }
+      Node middle = right.left;
+      return new Node(
+          middle.widget,
+          new Node(widget, left, middle.left),
+          new Node(right.widget, middle.right, right.right));
+    }
+    return new Node(widget, left, right);
+  }
+
+  private static int size(Node node) {
+    return node != null ? node.size : 0;
+  }
+
+  private static int height(Node node) {
+    return node != null ? node.height : 0;
+  }
+
+  private static final class Node {
+
+    private final WidgetSnapshot widget;
+
+    private final Node left;
+
+    private final Node right;
+
+    private final int size;
+
+    private final int height;
+
+    private Node(WidgetSnapshot widget, Node left, Node right) {
+      this.widget = widget;
+      this.left = left;
+      this.right = right;
+      this.size = size(left) + size(right) + 1;
+      this.height = Math.max(height(left), height(right)) + 1;
+    }
+  }
+
+  // The stack holds the next widget on top and the nodes which follow it on the way to the root
+  private abstract static class PathIterator implements Iterator<WidgetSnapshot> {
+
+    final Deque<Node> path = new ArrayDeque<>();
+
+    @Override
+    public boolean hasNext() {
+      return !path.isEmpty();
+    }
+
+    @Override
+    public WidgetSnapshot next() {
+      if (path.isEmpty()) {
+        throw new NoSuchElementException();
+      }
+      Node node = path.pop();
+      pushFollowing(node);
+      return node.widget;
+    }
+
+    abstract void pushFollowing(Node node);
+  }
+
+  private static final class AscendingIterator extends PathIterator {
+
+    private AscendingIterator(Node node, int rank) {
+      while (node != null) {
+        int leftSize = size(node.left);
+        if (rank < leftSize) {
+          path.push(node);
+          node = node.left;
+        } else if (rank == leftSize) {
+          path.push(node);
+          break;
+        } else {
+          rank -= leftSize + 1;
+          node = node.right;
+        }
+      }
+    }
+
+    @Override
+    void pushFollowing(Node node) {
+      for (Node child = node.right; child != null; child = child.left) {
+        path.push(child);
+      }
+    }
+  }
+
+  private static final class DescendingIterator extends PathIterator {
+
+    private DescendingIterator(Node node, int rank) {
+      while (node != null) {
+        int leftSize = size(node.left);
+        if (rank < leftSize) {
+          node = node.left;
+        } else if (rank == leftSize) {
+          path.push(node);
+          break;
+        } else {
+          path.push(node);
+          rank -= leftSize + 1;
+          node = node.right;
+        }
+      }
+    }
+
+    @Override
+    void pushFollowing(Node node) {
+      for (Node child = node.left; child != null; child = child.right) {
+        path.push(child);
+      }
+    }
+  }
+}
@@ -1,8 +1,119 @@
 package com.levykin.widget.dao.impl;
 
 import com.levykin.widget.model.Widget;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.PagingAndSortingRepository;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.persistence.QueryHint;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Stream;
 
 @Repository
-interface WidgetRepository extends PagingAndSortingRepository<Widget, Long> {}
+interface WidgetRepository extends PagingAndSortingRepository<Widget, Long> {
+
+  @Query("select max(w.index) from Widget w")
+  Integer findMaxIndex();
+
+  @Query("select min(w.index) from Widget w")
+  Integer findMinIndex();
+
+  @Query(
+      "select w from Widget w where w.x >= :x and w.y >= :y "
+          + "and w.x + w.width <= :maxX and w.y + w.height <= :maxY")
+  Slice<Widget> findAllInArea(
+      @Param("x") Integer x,
+      @Param("y") Integer y,
+      @Param("maxX") Integer maxX,
+      @Param("maxY") Integer maxY,
+      Pageable pageable);
+
+  @Query(
+      "select w from Widget w where w.index > :afterIndex and w.x >= :x and w.y >= :y "
+          + "and w.x + w.width <= :maxX and w.y + w.height <= :maxY")
+  Slice<Widget> findAllInAreaAfter(
+      @Param("afterIndex") Integer afterIndex,
+      @Param("x") Integer x,
+      @Param("y") Integer y,
+      @Param("maxX") Integer maxX,
+      @Param("maxY") Integer maxY,
+      Pageable pageable);
+
+  @Query(
+      "select count(w) from Widget w where w.x >= :x and w.y >= :y "
+          + "and w.x + w.width <= :maxX and w.y + w.height <= :maxY")
+  long countInArea(
+      @Param("x") Integer x,
+      @Param("y") Integer y,
+      @Param("maxX") Integer maxX,
+      @Param("maxY") Integer maxY);
+
+  // Column, row, count and max index of non-empty tiles, the same as AreaFilter computes them
+  @Query(
+      nativeQuery = true,
+      value =
+          "select tile_column, tile_row, count(*), max(tile_index) from ("
+              + "select least(:columns - 1, (cast(x as bigint) - :x) * :columns / :width) "
+              + "as tile_column, "
+              + "least(:rows - 1, (cast(y as bigint) - :y) * :rows / :height) as tile_row, "
+              + "index as tile_index from widget where x >= :x and y >= :y "
+              + "and x + width <= :maxX and y + height <= :maxY) "
+              + "group by tile_row, tile_column order by tile_row, tile_column")
+  List<Object[]> countByTiles(
+      @Param("x") Integer x,
+      @Param("y") Integer y,
+      @Param("width") Integer width,
+      @Param("height") Integer height,
+      @Param("maxX") Integer maxX,
+      @Param("maxY") Integer maxY,
+      @Param("columns") Integer columns,
+      @Param("rows") Integer rows);
+
+  Slice<Widget> findByIndexGreaterThan(Integer index, Pageable pageable);
+
+  @QueryHints(@QueryHint(name = "org.hibernate.fetchSize", value = "500"))
+  @Query("select w from Widget w order by w.index")
+  Stream<Widget> streamAllOrderedByIndex();
+
+  boolean existsByIndex(Integer index);
+
+  @Modifying
+  @Transactional
+  @Query(
+      "update Widget w set w.x = :x, w.y = :y, w.index = :index, w.width = :width, "
+          + "w.height = :height, w.modificationDate = :modificationDate where w.id = :id")
+  int updateById(
+      @Param("id") Long id,
+      @Param("x") Integer x,
+      @Param("y") Integer y,
+      @Param("index") Integer index,
+      @Param("width") Float width,
+      @Param("height") Float height,
+      @Param("modificationDate") Date modificationDate);
+
+  @Modifying
+  @Transactional
+  @Query("delete from Widget w where w.id in :ids")
+  int deleteByIds(@Param("ids") Collection<Long> ids);
+
+  // The last index of the run of consecutive indexes starting from the given (existing) one
+  @Query(
+      "select min(w.index) from Widget w where w.index >= :fromIndex and not exists "
+          + "(select n.id from Widget n where n.index = w.index + 1)")
+  Integer findRunEndIndex(@Param("fromIndex") Integer fromIndex);
+
+  @Modifying
+  @Transactional
+  @Query(
+      "update Widget w set w.index = w.index + 1 "
+          + "where w.index >= :fromIndex and w.index < :toIndex")
+  int shiftIndexes(@Param("fromIndex") Integer fromIndex, @Param("toIndex") Integer toIndex);
+}
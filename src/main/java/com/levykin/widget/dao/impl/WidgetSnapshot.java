@@ -0,0 +1,137 @@
+package com.levykin.widget.dao.impl;
+
+import com.levykin.widget.model.AreaFilter;
+import com.levykin.widget.model.Widget;
+
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+import java.util.Date;
+
+/**
+ * Immutable stored state of a widget. Being immutable it is shared by the map, the z-order index
+ * and the grid of the store without copies, and scans read its primitives without unboxing. Every
+ * widget handed out of the store is still a new {@link Widget}, since the callers of the store
+ * may change what they get. Absent values of a widget are stored as zero.
+ */
+final class WidgetSnapshot {
+
+  // Widgets with the same index (possible while the service is shifting them) are ordered by id
+  static final Comparator<WidgetSnapshot> Z_ORDER =
+      Comparator.comparingInt(WidgetSnapshot::getIndex).thenComparingLong(WidgetSnapshot::getId);
+
+  /** Size of a widget written with {@link #writeTo(ByteBuffer)}. */
+  static final int BYTES = 2 * Long.BYTES + 3 * Integer.BYTES + 2 * Float.BYTES;
+
+  private static final long NO_MODIFICATION_DATE = Long.MIN_VALUE;
+
+  private final long id;
+
+  private final int x;
+
+  private final int y;
+
+  private final int index;
+
+  private final float width;
+
+  private final float height;
+
+  private final long modificationTime;
+
+  private WidgetSnapshot(
+      long id, int x, int y, int index, float width, float height, long modificationTime) {
+    this.id = id;
+    this.x = x;
+    this.y = y;
+    this.index = index;
+    this.width = width;
+    this.height = height;
+    this.modificationTime = modificationTime;
+  }
+
+  static WidgetSnapshot of(long id, Widget widget) {
+    Date modificationDate = widget.getModificationDate();
+    return new WidgetSnapshot(
+        id,
+        widget.getX() != null ? widget.getX() : 0,
+        widget.getY() != null ? widget.getY() : 0,
+        widget.getIndex() != null ? widget.getIndex() : 0,
+        widget.getWidth() != null ? widget.getWidth() : 0f,
+        widget.getHeight() != null ? widget.getHeight() : 0f,
+        modificationDate != null ? modificationDate.getTime() : NO_MODIFICATION_DATE);
+  }
+
+  /** A key which is ordered with {@link #Z_ORDER} as a widget with the given index and id. */
+  static WidgetSnapshot zOrderKey(int index, long id) {
+    return new WidgetSnapshot(id, 0, 0, index, 0f, 0f, NO_MODIFICATION_DATE);
+  }
+
+  static WidgetSnapshot readFrom(ByteBuffer buffer) {
+    return new WidgetSnapshot(
+        buffer.getLong(),
+        buffer.getInt(),
+        buffer.getInt(),
+        buffer.getInt(),
+        buffer.getFloat(),
+        buffer.getFloat(),
+        buffer.getLong());
+  }
+
+  void writeTo(ByteBuffer buffer) {
+    buffer
+        .putLong(id)
+        .putInt(x)
+        .putInt(y)
+        .putInt(index)
+        .putFloat(width)
+        .putFloat(height)
+        .putLong(modificationTime);
+  }
+
+  WidgetSnapshot withIndex(int index) {
+    return new WidgetSnapshot(id, x, y, index, width, height, modificationTime);
+  }
+
+  boolean isInside(AreaFilter area) {
+    return area.contains(x, y, width, height);
+  }
+
+  // A new mutable entity per call, with boxed values and its own date
+  Widget toWidget() {
+    Widget widget = new Widget();
+    widget.setId(id);
+    widget.setX(x);
+    widget.setY(y);
+    widget.setIndex(index);
+    widget.setWidth(width);
+    widget.setHeight(height);
+    if (modificationTime != NO_MODIFICATION_DATE) {
+      widget.setModificationDate(new Date(modificationTime));
+    }
+    return widget;
+  }
+
+  long getId() {
+    return id;
+  }
+
+  int getX() {
+    return x;
+  }
+
+  int getY() {
+    return y;
+  }
+
+  int getIndex() {
+    return index;
+  }
+
+  float getRight() {
+    return x + width;
+  }
+
+  float getBottom() {
+    return y + height;
+  }
+}
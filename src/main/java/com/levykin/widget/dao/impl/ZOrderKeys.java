@@ -0,0 +1,221 @@
+package com.levykin.widget.dao.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.OptionalLong;
+import java.util.PrimitiveIterator;
+
+/**
+ * Z-order of widgets as a set of primitive keys, each packing an index with an id, so the order of
+ * keys is {@link WidgetSnapshot#Z_ORDER}. Keys are kept in sorted blocks of bounded size: a change
+ * moves keys of one block only, and ranks are counted by blocks. It takes about as much heap as
+ * the keys themselves. Not thread-safe.
+ */
+final class ZOrderKeys {
+
+  private static final int BLOCK_CAPACITY = 2048;
+
+  /** Greatest id which fits a key. */
+  static final long MAX_ID = 0xFFFFFFFFL;
+
+  private final List<Block> blocks = new ArrayList<>();
+
+  private int size;
+
+  static long toKey(int index, long id) {
+    return ((long) index << 32) | id;
+  }
+
+  static int getIndex(long key) {
+    return (int) (key >> 32);
+  }
+
+  static long getId(long key) {
+    return key & MAX_ID;
+  }
+
+  int size() {
+    return size;
+  }
+
+  void add(long key) {
+    if (blocks.isEmpty()) {
+      blocks.add(new Block());
+    }
+    int blockNumber = findBlock(key);
+    Block block = blocks.get(blockNumber);
+    int position = Arrays.binarySearch(block.keys, 0, block.size, key);
+    if (position >= 0) {
+      return;
+    }
+    block.insert(-position - 1, key);
+    size++;
+    if (block.size == BLOCK_CAPACITY) {
+      blocks.add(blockNumber + 1, block.split());
+    }
+  }
+
+  void remove(long key) {
+    if (blocks.isEmpty()) {
+      return;
+    }
+    int blockNumber = findBlock(key);
+    Block block = blocks.get(blockNumber);
+    int position = Arrays.binarySearch(block.keys, 0, block.size, key);
+    if (position < 0) {
+      return;
+    }
+    block.delete(position);
+    size--;
+    if (block.size == 0) {
+      blocks.remove(blockNumber);
+    }
+  }
+
+  OptionalLong first() {
+    return size == 0 ? OptionalLong.empty() : OptionalLong.of(blocks.get(0).keys[0]);
+  }
+
+  OptionalLong last() {
+    if (size == 0) {
+      return OptionalLong.empty();
+    }
+    Block block = blocks.get(blocks.size() - 1);
+    return OptionalLong.of(block.keys[block.size - 1]);
+  }
+
+  /** Number of keys less than the given one. */
+  int rank(long key) {
+    int rank = 0;
+    for (Block block : blocks) {
+      if (block.keys[block.size - 1] < key) {
+        rank += block.size;
+      } else {
+        int position = Arrays.binarySearch(block.keys, 0, block.size, key);
+        return rank + (position >= 0 ? position : -position - 1);
+      }
+    }
+    return rank;
+  }
+
+  /** Keys in ascending order starting from the given rank. */
+  PrimitiveIterator.OfLong iterator(int fromRank) {
+    return new AscendingIterator(fromRank);
+  }
+
+  /** Keys in descending order skipping the given number of the greatest ones. */
+  PrimitiveIterator.OfLong descendingIterator(int skipped) {
+    return new DescendingIterator(skipped);
+  }
+
+  // The block which holds the key or where it has to be inserted
+  private int findBlock(long key) {
+    int low = 0;
+    int high = blocks.size() - 1;
+    while (low < high) {
+      int middle = (low + high + 1) >>> 1;
+      if (blocks.get(middle).keys[0] <= key) {
+        low = middle;
+      } else {
+        high = middle - 1;
+      }
+    }
+    return low;
+  }
+
+  private static final class Block {
+
+    private final long[] keys = new long[BLOCK_CAPACITY];
+
+    private int size;
+
+    private void insert(int position, long key) {
+      System.arraycopy(keys, position, keys, position + 1, size - position);
+      keys[position] = key;
+      size++;
+    }
+
+    private void delete(int position) {
+      System.arraycopy(keys, position + 1, keys, position, size - position - 1);
+      size--;
+    }
+
+    private Block split() {
+      Block upper = new Block();
+      upper.size = size / 2;
+      System.arraycopy(keys, size - upper.size, upper.keys, 0, upper.size);
+      size -= upper.size;
+      return upper;
+    }
+  }
+
+  private final class AscendingIterator implements PrimitiveIterator.OfLong {
+
+    private int blockNumber;
+
+    private int position;
+
+    private AscendingIterator(int rank) {
+      position = rank;
+      while (blockNumber < blocks.size() && position >= blocks.get(blockNumber).size) {
+        position -= blocks.get(blockNumber).size;
+        blockNumber++;
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return blockNumber < blocks.size();
+    }
+
+    @Override
+    public long nextLong() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      Block block = blocks.get(blockNumber);
+      long key = block.keys[position++];
+      if (position == block.size) {
+        blockNumber++;
+        position = 0;
+      }
+      return key;
+    }
+  }
+
+  private final class DescendingIterator implements PrimitiveIterator.OfLong {
+
+    private int blockNumber = blocks.size() - 1;
+
+    private int position;
+
+    private DescendingIterator(int skipped) {
+      while (blockNumber >= 0 && skipped >= blocks.get(blockNumber).size) {
+        skipped -= blocks.get(blockNumber).size;
+        blockNumber--;
+      }
+      if (blockNumber >= 0) {
+        position = blocks.get(blockNumber).size - 1 - skipped;
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return blockNumber >= 0;
+    }
+
+    @Override
+    public long nextLong() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      long key = blocks.get(blockNumber).keys[position--];
+      if (position < 0 && --blockNumber >= 0) {
+        position = blocks.get(blockNumber).size - 1;
+      }
+      return key;
+    }
+  }
+}
@@ -0,0 +1,8 @@
+package com.levykin.widget.exception;
+
+public class ConflictingParametersException extends ServiceException {
+
+  public ConflictingParametersException(String... names) {
+    super("Parameters can not be used together: " + String.join(", ", names));
+  }
+}
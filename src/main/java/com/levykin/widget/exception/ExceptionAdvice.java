@@ -41,7 +41,9 @@ class ExceptionAdvice {
     ServletRequestBindingException.class,
     MethodArgumentTypeMismatchException.class,
     ConstraintViolationException.class,
-    MethodArgumentNotValidException.class
+    MethodArgumentNotValidException.class,
+    UnknownFieldsException.class,
+    ConflictingParametersException.class
   })
   private ErrorResponse handleBadRequestException(Exception ex) {
     logger.info(ex.getMessage(), ex);
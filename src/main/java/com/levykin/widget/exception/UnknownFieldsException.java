@@ -0,0 +1,10 @@
+package com.levykin.widget.exception;
+
+import java.util.Set;
+
+public class UnknownFieldsException extends ServiceException {
+
+  public UnknownFieldsException(Set<String> fields, Set<String> knownFields) {
+    super("Unknown fields: " + String.join(",", fields) + ", known are " + knownFields);
+  }
+}
@@ -0,0 +1,8 @@
+package com.levykin.widget.exception;
+
+public class WidgetChangesOverflowException extends ServiceException {
+
+  public WidgetChangesOverflowException() {
+    super("Missed changes are not kept any longer, widgets have to be read again");
+  }
+}
@@ -17,10 +17,40 @@ public class AreaFilter {
     this.height = height;
   }
 
+  public int getX() {
+    return x;
+  }
+
+  public int getY() {
+    return y;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  /** Column of the point when the area is divided into the given number of columns. */
+  public int getTileColumn(int x, int columns) {
+    return (int) Math.min(columns - 1, ((long) x - this.x) * columns / width);
+  }
+
+  /** Row of the point when the area is divided into the given number of rows. */
+  public int getTileRow(int y, int rows) {
+    return (int) Math.min(rows - 1, ((long) y - this.y) * rows / height);
+  }
+
   public boolean match(Widget widget) {
-    return widget.getX() >= x
-        && widget.getY() >= y
-        && widget.getX() + widget.getWidth() <= x + width
-        && widget.getY() + widget.getHeight() <= y + height;
+    return contains(widget.getX(), widget.getY(), widget.getWidth(), widget.getHeight());
+  }
+
+  public boolean contains(int x, int y, float width, float height) {
+    return x >= this.x
+        && y >= this.y
+        && x + width <= this.x + this.width
+        && y + height <= this.y + this.height;
   }
 }
@@ -0,0 +1,48 @@
+package com.levykin.widget.model;
+
+import javax.validation.Valid;
+import javax.validation.constraints.NotNull;
+
+public class BatchOperation {
+
+  public enum Type {
+    CREATE,
+    UPDATE,
+    DELETE
+  }
+
+  public interface Deletion {}
+
+  @NotNull private Type type;
+
+  @NotNull(groups = {Widget.Update.class, Deletion.class})
+  private Long id;
+
+  @Valid
+  @NotNull(groups = {Widget.Creation.class, Widget.Update.class})
+  private Widget widget;
+
+  public Type getType() {
+    return type;
+  }
+
+  public void setType(Type type) {
+    this.type = type;
+  }
+
+  public Long getId() {
+    return id;
+  }
+
+  public void setId(Long id) {
+    this.id = id;
+  }
+
+  public Widget getWidget() {
+    return widget;
+  }
+
+  public void setWidget(Widget widget) {
+    this.widget = widget;
+  }
+}
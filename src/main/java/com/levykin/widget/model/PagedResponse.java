@@ -19,6 +19,9 @@ public class PagedResponse<T> {
 
   private int size;
 
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  private Integer nextCursor;
+
   public PagedResponse(Slice<T> slice) {
     hasNext = slice.hasNext();
     content = slice.getContent();
@@ -29,6 +32,18 @@ public class PagedResponse<T> {
     }
   }
 
+  public PagedResponse(Slice<T> slice, Integer nextCursor) {
+    this(slice);
+    this.nextCursor = nextCursor;
+  }
+
+  public PagedResponse(Slice<T> slice, Integer nextCursor, Long total) {
+    this(slice, nextCursor);
+    if (total != null) {
+      this.total = total;
+    }
+  }
+
   public Long getTotal() {
     return total;
   }
@@ -48,4 +63,8 @@ public class PagedResponse<T> {
   public int getSize() {
     return size;
   }
+
+  public Integer getNextCursor() {
+    return nextCursor;
+  }
 }
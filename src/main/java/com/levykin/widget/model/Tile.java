@@ -0,0 +1,35 @@
+package com.levykin.widget.model;
+
+public class Tile {
+
+  private int column;
+
+  private int row;
+
+  private long count;
+
+  private int maxIndex;
+
+  public Tile(int column, int row, long count, int maxIndex) {
+    this.column = column;
+    this.row = row;
+    this.count = count;
+    this.maxIndex = maxIndex;
+  }
+
+  public int getColumn() {
+    return column;
+  }
+
+  public int getRow() {
+    return row;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public int getMaxIndex() {
+    return maxIndex;
+  }
+}
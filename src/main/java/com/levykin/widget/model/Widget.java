@@ -4,11 +4,18 @@ import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
 import javax.validation.constraints.NotNull;
 import javax.validation.constraints.Null;
 import java.util.Date;
 
 @Entity
+@Table(
+    indexes = {
+      @Index(name = "widget_index_idx", columnList = "index"),
+      @Index(name = "widget_x_y_idx", columnList = "x, y")
+    })
 public class Widget {
 
   public interface Creation {}
@@ -0,0 +1,98 @@
+package com.levykin.widget.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ * A stored change of widgets. A shift means that widgets with indexes from fromIndex inclusive to
+ * toIndex exclusive got indexes greater by one. A spread means that all widgets, in the order of
+ * their indexes, got indexes from fromIndex by the step.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class WidgetChange {
+
+  public enum Type {
+    CREATE,
+    UPDATE,
+    DELETE,
+    SHIFT,
+    SPREAD
+  }
+
+  private final long sequence;
+
+  private final Type type;
+
+  private final Long id;
+
+  private final Widget widget;
+
+  private final Integer fromIndex;
+
+  private final Integer toIndex;
+
+  private final Integer step;
+
+  private WidgetChange(
+      long sequence,
+      Type type,
+      Long id,
+      Widget widget,
+      Integer fromIndex,
+      Integer toIndex,
+      Integer step) {
+    this.sequence = sequence;
+    this.type = type;
+    this.id = id;
+    this.widget = widget;
+    this.fromIndex = fromIndex;
+    this.toIndex = toIndex;
+    this.step = step;
+  }
+
+  /** A creation or an update with a copy of the stored widget. */
+  public static WidgetChange stored(long sequence, Type type, long id, Widget widget) {
+    Widget storedWidget = new Widget(widget);
+    storedWidget.setId(id);
+    return new WidgetChange(sequence, type, id, storedWidget, null, null, null);
+  }
+
+  public static WidgetChange deleted(long sequence, long id) {
+    return new WidgetChange(sequence, Type.DELETE, id, null, null, null, null);
+  }
+
+  public static WidgetChange shifted(long sequence, int fromIndex, int toIndex) {
+    return new WidgetChange(sequence, Type.SHIFT, null, null, fromIndex, toIndex, null);
+  }
+
+  public static WidgetChange spread(long sequence, int fromIndex, int step) {
+    return new WidgetChange(sequence, Type.SPREAD, null, null, fromIndex, null, step);
+  }
+
+  public long getSequence() {
+    return sequence;
+  }
+
+  public Type getType() {
+    return type;
+  }
+
+  public Long getId() {
+    return id;
+  }
+
+  public Widget getWidget() {
+    return widget;
+  }
+
+  public Integer getFromIndex() {
+    return fromIndex;
+  }
+
+  public Integer getToIndex() {
+    return toIndex;
+  }
+
+  public Integer getStep() {
+    return step;
+  }
+}
@@ -0,0 +1,44 @@
+package com.levykin.widget.service;
+
+import com.levykin.widget.model.AreaFilter;
+import com.levykin.widget.model.BatchOperation;
+import com.levykin.widget.model.Tile;
+import com.levykin.widget.model.Widget;
+import com.levykin.widget.model.WidgetChange;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+
+/** {@link WidgetService} which never blocks the thread subscribing to its results. */
+public interface ReactiveWidgetService {
+
+  Mono<Widget> get(long id);
+
+  Mono<Void> delete(long id);
+
+  Mono<Long> create(Widget widget);
+
+  Mono<Widget> update(Widget widget);
+
+  Mono<List<Long>> applyBatch(List<BatchOperation> operations);
+
+  Mono<Slice<Widget>> getAll(Pageable pageable, AreaFilter area);
+
+  Mono<Slice<Widget>> getAllAfter(int afterIndex, Integer size, AreaFilter area);
+
+  Mono<Long> count(AreaFilter area);
+
+  Mono<List<Tile>> getTiles(AreaFilter area, int columns, int rows);
+
+  /** All widgets ordered by index, read page by page as they are requested. */
+  Flux<Widget> getAllOrdered();
+
+  /**
+   * Changes after the given sequence number, or changes from now on if it is null. Ends with
+   * {@link com.levykin.widget.exception.WidgetChangesOverflowException} when changes are missed.
+   */
+  Flux<WidgetChange> getChanges(Long afterSequence);
+}
@@ -0,0 +1,21 @@
+package com.levykin.widget.service;
+
+import com.levykin.widget.model.WidgetChange;
+
+/**
+ * Receives changes of widgets in the order of their sequence numbers, one change at a time. An
+ * exception thrown by the subscriber unsubscribes it.
+ */
+public interface WidgetChangeSubscriber {
+
+  void onChange(WidgetChange change) throws Exception;
+
+  /**
+   * Called instead of the next change when it is not kept any longer, the subscriber is
+   * unsubscribed then. Widgets have to be read again to go on from the latest change.
+   */
+  void onOverflow() throws Exception;
+
+  /** Called when the subscriber is unsubscribed because it has thrown the exception. */
+  void onDropped(Exception e);
+}
@@ -1,11 +1,16 @@
 package com.levykin.widget.service;
 
 import com.levykin.widget.model.AreaFilter;
+import com.levykin.widget.model.BatchOperation;
+import com.levykin.widget.model.Tile;
 import com.levykin.widget.model.Widget;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.domain.Slice;
 import org.springframework.data.domain.Sort;
 
+import java.util.List;
+import java.util.function.Consumer;
+
 public interface WidgetService {
 
   Sort SORT_BY_INDEX = Sort.by("index");
@@ -20,5 +25,31 @@ public interface WidgetService {
 
   Widget update(Widget widget);
 
+  /** Applies operations in the given order and returns the ids of their widgets. */
+  List<Long> applyBatch(List<BatchOperation> operations);
+
   Slice<Widget> getAll(Pageable pageable, AreaFilter area);
+
+  Slice<Widget> getAllAfter(int afterIndex, Integer size, AreaFilter area);
+
+  /** Counts all widgets or only those inside the area if it is given. */
+  long count(AreaFilter area);
+
+  List<Tile> getTiles(AreaFilter area, int columns, int rows);
+
+  void forEachOrdered(Consumer<? super Widget> action);
+
+  /**
+   * Passes the subscriber changes after the given sequence number, or changes from now on if it is
+   * null. Changes are passed on other threads and never hold up writes.
+   */
+  void subscribe(Long afterSequence, WidgetChangeSubscriber subscriber);
+
+  void unsubscribe(WidgetChangeSubscriber subscriber);
+
+  /** Grows with every change of widgets, starting from zero on every start. */
+  long getVersion();
+
+  /** Time of the latest change of widgets, or of the start if there was none. */
+  long getLastModified();
 }
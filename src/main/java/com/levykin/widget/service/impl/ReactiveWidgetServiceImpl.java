@@ -0,0 +1,157 @@
+package com.levykin.widget.service.impl;
+
+import com.levykin.widget.exception.WidgetChangesOverflowException;
+import com.levykin.widget.model.AreaFilter;
+import com.levykin.widget.model.BatchOperation;
+import com.levykin.widget.model.Tile;
+import com.levykin.widget.model.Widget;
+import com.levykin.widget.model.WidgetChange;
+import com.levykin.widget.service.ReactiveWidgetService;
+import com.levykin.widget.service.WidgetChangeSubscriber;
+import com.levykin.widget.service.WidgetService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.core.env.Environment;
+import org.springframework.core.env.Profiles;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
+import org.springframework.stereotype.Service;
+import reactor.core.Exceptions;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.PostConstruct;
+import java.util.List;
+
+/**
+ * Calls the blocking service on the bounded elastic scheduler, so event loop threads never wait
+ * for locks or the database, nor scan widgets. Only a widget read by id from the java in-memory
+ * storage runs right on the subscribing thread, as it is a single map lookup which never waits for
+ * writes. Lists, counts and tiles scan as many widgets as they ask for, so they are scheduled too.
+ */
+@Profile("reactive-web")
+@Service
+public class ReactiveWidgetServiceImpl implements ReactiveWidgetService {
+
+  private static final int ORDERED_PAGE_SIZE = 100;
+
+  // Changes delivered but not sent yet to a slow client, more of them are an overflow
+  private static final int PENDING_CHANGES_LIMIT = 10000;
+
+  @Autowired private WidgetService service;
+
+  @Autowired private Environment environment;
+
+  @Value("${widget-application.dao.max-concurrent-calls:0}")
+  private int maxConcurrentDaoCalls;
+
+  private final Scheduler scheduler = Schedulers.boundedElastic();
+
+  private Scheduler getScheduler;
+
+  @PostConstruct
+  void chooseGetScheduler() {
+    // Calls limited by the DAO wait for a permit, reads included
+    boolean nonBlockingGets =
+        environment.acceptsProfiles(Profiles.of("java-in-memory-storage"))
+            && maxConcurrentDaoCalls <= 0;
+    getScheduler = nonBlockingGets ? Schedulers.immediate() : scheduler;
+  }
+
+  @Override
+  public Mono<Widget> get(long id) {
+    return Mono.fromCallable(() -> service.get(id)).subscribeOn(getScheduler);
+  }
+
+  @Override
+  public Mono<Void> delete(long id) {
+    return Mono.<Void>fromRunnable(() -> service.delete(id)).subscribeOn(scheduler);
+  }
+
+  @Override
+  public Mono<Long> create(Widget widget) {
+    return Mono.fromCallable(() -> service.create(widget)).subscribeOn(scheduler);
+  }
+
+  @Override
+  public Mono<Widget> update(Widget widget) {
+    return Mono.fromCallable(() -> service.update(widget)).subscribeOn(scheduler);
+  }
+
+  @Override
+  public Mono<List<Long>> applyBatch(List<BatchOperation> operations) {
+    return Mono.fromCallable(() -> service.applyBatch(operations)).subscribeOn(scheduler);
+  }
+
+  @Override
+  public Mono<Slice<Widget>> getAll(Pageable pageable, AreaFilter area) {
+    return Mono.fromCallable(() -> service.getAll(pageable, area)).subscribeOn(scheduler);
+  }
+
+  @Override
+  public Mono<Slice<Widget>> getAllAfter(int afterIndex, Integer size, AreaFilter area) {
+    return Mono.fromCallable(() -> service.getAllAfter(afterIndex, size, area))
+        .subscribeOn(scheduler);
+  }
+
+  @Override
+  public Mono<Long> count(AreaFilter area) {
+    return Mono.fromCallable(() -> service.count(area)).subscribeOn(scheduler);
+  }
+
+  @Override
+  public Mono<List<Tile>> getTiles(AreaFilter area, int columns, int rows) {
+    return Mono.fromCallable(() -> service.getTiles(area, columns, rows)).subscribeOn(scheduler);
+  }
+
+  // Pages follow each other by the index cursor, so changes between them are seen like in paging
+  @Override
+  public Flux<Widget> getAllOrdered() {
+    return Mono.fromCallable(() -> service.getAll(PageRequest.of(0, ORDERED_PAGE_SIZE), null))
+        .subscribeOn(scheduler)
+        .expand(
+            slice -> {
+              if (!slice.hasNext() || !slice.hasContent()) {
+                return Mono.empty();
+              }
+              List<Widget> content = slice.getContent();
+              int lastIndex = content.get(content.size() - 1).getIndex();
+              return Mono.fromCallable(
+                      () -> service.getAllAfter(lastIndex, ORDERED_PAGE_SIZE, null))
+                  .subscribeOn(scheduler);
+            })
+        .concatMapIterable(Slice::getContent);
+  }
+
+  @Override
+  public Flux<WidgetChange> getChanges(Long afterSequence) {
+    return Flux.<WidgetChange>create(
+            sink -> {
+              WidgetChangeSubscriber subscriber =
+                  new WidgetChangeSubscriber() {
+                    @Override
+                    public void onChange(WidgetChange change) {
+                      sink.next(change);
+                    }
+
+                    @Override
+                    public void onOverflow() {
+                      sink.error(new WidgetChangesOverflowException());
+                    }
+
+                    @Override
+                    public void onDropped(Exception e) {
+                      sink.error(e);
+                    }
+                  };
+              sink.onDispose(() -> service.unsubscribe(subscriber));
+              service.subscribe(afterSequence, subscriber);
+            })
+        .onBackpressureBuffer(PENDING_CHANGES_LIMIT)
+        .onErrorMap(Exceptions::isOverflow, e -> new WidgetChangesOverflowException());
+  }
+}
@@ -0,0 +1,203 @@
+package com.levykin.widget.service.impl;
+
+import com.levykin.widget.dao.WidgetDao;
+import com.levykin.widget.exception.WidgetNotFoundException;
+import com.levykin.widget.model.Widget;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static com.levykin.widget.service.WidgetService.SORT_BY_INDEX;
+
+/**
+ * Applies a batch of operations to a working copy of the store with the same index rules as
+ * single writes, and collects the net changes. Widgets moved several times by the batch are
+ * written once. Nothing is stored if any operation fails.
+ *
+ * <p>The copy holds only the widgets the batch reaches: the changed ones and the runs of indexes
+ * looked through for a gap, loaded a page at a time. Loaded widgets are copies, which take over
+ * from the stored ones, so indexes of loaded ranges are known from the copy alone. Spreading
+ * indexes loads all widgets. The top index is the higher of the stored and the planned ones, so
+ * the index of a top widget deleted by the batch is not given again.
+ */
+class WidgetBatchPlan extends WidgetIndexes {
+
+  private static final int LOADED_PAGE_SIZE = 128;
+
+  private final WidgetDao dao;
+
+  private final int storedMaxIndex;
+
+  private final NavigableMap<Integer, Widget> widgetsByIndex = new TreeMap<>();
+
+  private final Map<Long, Widget> widgetsById = new HashMap<>();
+
+  // Starts and ends (exclusive) of the index ranges with all stored widgets loaded
+  private final NavigableMap<Integer, Long> loadedRanges = new TreeMap<>();
+
+  private final Set<Widget> changedWidgets = new LinkedHashSet<>();
+
+  private final Set<Long> deletedIds = new LinkedHashSet<>();
+
+  WidgetBatchPlan(WidgetDao dao, int indexStep, int rebalanceThreshold) {
+    super(indexStep, rebalanceThreshold);
+    this.dao = dao;
+    storedMaxIndex = dao.maxIndex().orElse(0);
+  }
+
+  void create(Widget widget) {
+    widget.setId(null);
+    widget.setModificationDate(new Date());
+    takeIndexAndShiftNext(widget);
+    widgetsByIndex.put(widget.getIndex(), widget);
+    changedWidgets.add(widget);
+  }
+
+  void update(Widget widget) {
+    Widget existingWidget = getExisting(widget.getId());
+    widget.setModificationDate(new Date());
+    takeIndexAndShiftNext(widget);
+    // Replaces the existing widget at its index, which spreading could have changed, unless a
+    // shifted widget has taken it already
+    widgetsByIndex.remove(existingWidget.getIndex(), existingWidget);
+    changedWidgets.remove(existingWidget);
+    widgetsById.put(widget.getId(), widget);
+    widgetsByIndex.put(widget.getIndex(), widget);
+    changedWidgets.add(widget);
+  }
+
+  void delete(long id) {
+    Widget existingWidget = getExisting(id);
+    widgetsById.remove(id);
+    widgetsByIndex.remove(existingWidget.getIndex(), existingWidget);
+    changedWidgets.remove(existingWidget);
+    deletedIds.add(id);
+  }
+
+  /** Created widgets (without id) go in the order of their creation. */
+  List<Widget> getChangedWidgets() {
+    return new ArrayList<>(changedWidgets);
+  }
+
+  Set<Long> getDeletedIds() {
+    return deletedIds;
+  }
+
+  @Override
+  int getMaxIndex() {
+    return widgetsByIndex.isEmpty()
+        ? storedMaxIndex
+        : Math.max(storedMaxIndex, widgetsByIndex.lastKey());
+  }
+
+  @Override
+  Integer getIndexById(Long widgetId) {
+    return widgetId != null ? getExisting(widgetId).getIndex() : null;
+  }
+
+  @Override
+  int findFreeIndex(int fromIndex) {
+    int index = fromIndex;
+    long loadedEnd = load(index);
+    while (widgetsByIndex.containsKey(index)) {
+      index++;
+      if (index >= loadedEnd) {
+        loadedEnd = load(index);
+      }
+    }
+    return index;
+  }
+
+  // Shifting widgets in reverse order, so each of them moves to an already released index
+  @Override
+  void shiftIndexes(int fromIndex, int toIndex) {
+    for (int index = toIndex - 1; index >= fromIndex; index--) {
+      Widget widget = widgetsByIndex.remove(index);
+      widget.setIndex(index + 1);
+      widgetsByIndex.put(index + 1, widget);
+      changedWidgets.add(widget);
+    }
+  }
+
+  @Override
+  List<Widget> getAllOrdered() {
+    for (Widget widget : dao.getAll(SORT_BY_INDEX)) {
+      addLoaded(widget);
+    }
+    loadedRanges.clear();
+    loadedRanges.put(Integer.MIN_VALUE, (long) Integer.MAX_VALUE + 1);
+    return new ArrayList<>(widgetsByIndex.values());
+  }
+
+  @Override
+  void storeSpread(List<Widget> widgets, int firstIndex, int step) {
+    widgetsByIndex.clear();
+    widgets.forEach(widget -> widgetsByIndex.put(widget.getIndex(), widget));
+    changedWidgets.addAll(widgets);
+  }
+
+  /**
+   * Loads a page of stored widgets from the given index on, unless they are loaded already.
+   * Returns the end of the loaded range the index is in.
+   */
+  private long load(int fromIndex) {
+    Map.Entry<Integer, Long> range = loadedRanges.floorEntry(fromIndex);
+    if (range != null && fromIndex < range.getValue()) {
+      return range.getValue();
+    }
+    Pageable pageable = PageRequest.of(0, LOADED_PAGE_SIZE, SORT_BY_INDEX);
+    Slice<Widget> widgets =
+        fromIndex == Integer.MIN_VALUE
+            ? dao.getAll(pageable)
+            : dao.getAllAfter(fromIndex - 1, pageable);
+    long end = (long) Integer.MAX_VALUE + 1;
+    for (Widget widget : widgets) {
+      addLoaded(widget);
+      if (widgets.hasNext()) {
+        end = (long) widget.getIndex() + 1;
+      }
+    }
+    // Ranges loaded before inside the new one are joined to it
+    NavigableMap<Integer, Long> joinedRanges =
+        loadedRanges.subMap(fromIndex, true, (int) Math.min(end, Integer.MAX_VALUE), true);
+    for (long joinedEnd : joinedRanges.values()) {
+      end = Math.max(end, joinedEnd);
+    }
+    joinedRanges.clear();
+    loadedRanges.put(fromIndex, end);
+    return end;
+  }
+
+  // A widget loaded before is a copy changed by the batch already, or deleted by it
+  private void addLoaded(Widget storedWidget) {
+    if (!widgetsById.containsKey(storedWidget.getId())
+        && !deletedIds.contains(storedWidget.getId())) {
+      Widget widget = new Widget(storedWidget);
+      widgetsById.put(widget.getId(), widget);
+      widgetsByIndex.put(widget.getIndex(), widget);
+    }
+  }
+
+  private Widget getExisting(long id) {
+    if (deletedIds.contains(id)) {
+      throw new WidgetNotFoundException(id);
+    }
+    Widget widget = widgetsById.get(id);
+    if (widget == null) {
+      widget = new Widget(dao.get(id));
+      widgetsById.put(id, widget);
+      widgetsByIndex.put(widget.getIndex(), widget);
+    }
+    return widget;
+  }
+}
@@ -0,0 +1,211 @@
+package com.levykin.widget.service.impl;
+
+import com.levykin.widget.model.Widget;
+import com.levykin.widget.model.WidgetChange;
+import com.levykin.widget.service.WidgetChangeSubscriber;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongFunction;
+
+/**
+ * Changes of widgets numbered in the order they are stored, the latest of them kept in a ring
+ * buffer. A writer only puts a change into the buffer. A dispatcher thread hands subscribers which
+ * are behind over to delivery threads, so a slow subscriber can hold a delivery thread but never a
+ * writer. A subscriber which falls behind the whole buffer is told so and dropped.
+ *
+ * <p>Sequence numbers start from the start time in microseconds, so they keep growing over restarts
+ * unless more than a thousand changes a millisecond are stored on average.
+ */
+@Component
+public class WidgetChangeFeed {
+
+  private static final int DELIVERY_BATCH_SIZE = 100;
+
+  private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+  private final WidgetChange[] buffer;
+
+  private final long firstSequence = System.currentTimeMillis() * 1000;
+
+  // Guarded by this
+  private long nextSequence = firstSequence;
+
+  private final Map<WidgetChangeSubscriber, Subscription> subscriptions = new ConcurrentHashMap<>();
+
+  // Released by writers, so they never wait for the dispatcher
+  private final Semaphore published = new Semaphore(0);
+
+  private final ExecutorService dispatchExecutor;
+
+  private final ExecutorService deliveryExecutor;
+
+  private final AtomicBoolean dispatching = new AtomicBoolean();
+
+  public WidgetChangeFeed(
+      @Value("${widget-application.changes.buffer-size:65536}") int bufferSize,
+      @Value("${widget-application.changes.delivery-threads:4}") int deliveryThreads) {
+    buffer = new WidgetChange[bufferSize];
+    dispatchExecutor = Executors.newSingleThreadExecutor(daemonThreads("widget-changes-dispatch"));
+    deliveryExecutor =
+        Executors.newFixedThreadPool(deliveryThreads, daemonThreads("widget-changes-delivery"));
+  }
+
+  public void created(long id, Widget widget) {
+    publish(sequence -> WidgetChange.stored(sequence, WidgetChange.Type.CREATE, id, widget));
+  }
+
+  public void updated(Widget widget) {
+    publish(
+        sequence ->
+            WidgetChange.stored(sequence, WidgetChange.Type.UPDATE, widget.getId(), widget));
+  }
+
+  public void deleted(long id) {
+    publish(sequence -> WidgetChange.deleted(sequence, id));
+  }
+
+  public void shifted(int fromIndex, int toIndex) {
+    publish(sequence -> WidgetChange.shifted(sequence, fromIndex, toIndex));
+  }
+
+  public void spread(int fromIndex, int step) {
+    publish(sequence -> WidgetChange.spread(sequence, fromIndex, step));
+  }
+
+  /**
+   * Delivers changes after the given sequence number, or only changes published from now on if it
+   * is null. A number which is not in the buffer any longer, or not yet, is an overflow.
+   */
+  public void subscribe(Long afterSequence, WidgetChangeSubscriber subscriber) {
+    if (dispatching.compareAndSet(false, true)) {
+      dispatchExecutor.execute(this::dispatch);
+    }
+    Subscription subscription;
+    synchronized (this) {
+      subscription =
+          new Subscription(subscriber, afterSequence != null ? afterSequence + 1 : nextSequence);
+    }
+    subscriptions.put(subscriber, subscription);
+    subscription.schedule();
+  }
+
+  public void unsubscribe(WidgetChangeSubscriber subscriber) {
+    subscriptions.remove(subscriber);
+  }
+
+  @PreDestroy
+  void close() {
+    dispatchExecutor.shutdownNow();
+    deliveryExecutor.shutdownNow();
+  }
+
+  private void publish(LongFunction<WidgetChange> change) {
+    synchronized (this) {
+      long sequence = nextSequence++;
+      buffer[(int) (sequence % buffer.length)] = change.apply(sequence);
+    }
+    published.release();
+  }
+
+  private void dispatch() {
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        published.acquire();
+        published.drainPermits();
+        subscriptions.values().forEach(Subscription::schedule);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  // Returns null if changes from the given sequence number are not in the buffer, or never were
+  private synchronized List<WidgetChange> read(long fromSequence) {
+    if (fromSequence < Math.max(firstSequence, nextSequence - buffer.length)
+        || fromSequence > nextSequence) {
+      return null;
+    }
+    int count = (int) Math.min(DELIVERY_BATCH_SIZE, nextSequence - fromSequence);
+    List<WidgetChange> changes = new ArrayList<>(count);
+    for (long sequence = fromSequence; sequence < fromSequence + count; sequence++) {
+      changes.add(buffer[(int) (sequence % buffer.length)]);
+    }
+    return changes;
+  }
+
+  private synchronized long getNextSequence() {
+    return nextSequence;
+  }
+
+  private static ThreadFactory daemonThreads(String name) {
+    return task -> {
+      Thread thread = new Thread(task, name);
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  private final class Subscription {
+
+    private final WidgetChangeSubscriber subscriber;
+
+    // Changed only by the delivery, which runs on one thread at a time
+    private volatile long nextSequence;
+
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    private Subscription(WidgetChangeSubscriber subscriber, long nextSequence) {
+      this.subscriber = subscriber;
+      this.nextSequence = nextSequence;
+    }
+
+    // A subscription ahead of the feed is scheduled too, to be told about the overflow
+    private void schedule() {
+      if (nextSequence != getNextSequence() && scheduled.compareAndSet(false, true)) {
+        deliveryExecutor.execute(this::deliver);
+      }
+    }
+
+    private void deliver() {
+      try {
+        while (subscriptions.get(subscriber) == this) {
+          List<WidgetChange> changes = read(nextSequence);
+          if (changes == null) {
+            subscriptions.remove(subscriber);
+            subscriber.onOverflow();
+            return;
+          }
+          if (changes.isEmpty()) {
+            scheduled.set(false);
+            // A change published after the read could be dispatched before the flag was cleared
+            if (nextSequence == getNextSequence() || !scheduled.compareAndSet(false, true)) {
+              return;
+            }
+            continue;
+          }
+          for (WidgetChange change : changes) {
+            subscriber.onChange(change);
+            nextSequence = change.getSequence() + 1;
+          }
+        }
+      } catch (Exception e) {
+        logger.info("Change subscriber dropped: " + e.getMessage(), e);
+        subscriptions.remove(subscriber);
+        subscriber.onDropped(e);
+      }
+    }
+  }
+}
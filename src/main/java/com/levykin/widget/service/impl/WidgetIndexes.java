@@ -0,0 +1,97 @@
+package com.levykin.widget.service.impl;
+
+import com.levykin.widget.model.Widget;
+
+import java.util.List;
+
+/**
+ * Index rules of writes, the same for single writes, which apply them to the store, and batches,
+ * which apply them to their plan. A widget without an index or with a higher one than all others
+ * goes on top of the stack. Otherwise the widgets from its index up to the nearest gap are shifted
+ * by one, and when there are more of them than the rebalance threshold, all widgets are spread by
+ * the index step first.
+ */
+abstract class WidgetIndexes {
+
+  private final int indexStep;
+
+  private final int rebalanceThreshold;
+
+  WidgetIndexes(int indexStep, int rebalanceThreshold) {
+    this.indexStep = indexStep;
+    this.rebalanceThreshold = rebalanceThreshold;
+  }
+
+  static int getNextTopIndex(int maxIndex, int indexStep) {
+    return maxIndex > Integer.MAX_VALUE - indexStep ? maxIndex + 1 : maxIndex + indexStep;
+  }
+
+  // Returns the number of shifted widgets
+  int takeIndexAndShiftNext(Widget activeWidget) {
+    int maxIndex = getMaxIndex();
+    if (activeWidget.getIndex() == null || activeWidget.getIndex() > maxIndex) {
+      activeWidget.setIndex(getNextTopIndex(maxIndex, indexStep));
+      return 0; // Nothing to shift. Use latest index.
+    }
+
+    Integer existingIndex = getIndexById(activeWidget.getId());
+    if (activeWidget.getIndex().equals(existingIndex)) {
+      return 0;
+    }
+
+    int fromIndex = activeWidget.getIndex();
+    int gapIndex = findFreeIndex(fromIndex);
+    if (indexStep > 1 && gapIndex - fromIndex > rebalanceThreshold) {
+      // Take the place of the same widget after spreading, so the order stays the same
+      fromIndex = spreadIndexes(fromIndex);
+      activeWidget.setIndex(fromIndex);
+      existingIndex = getIndexById(activeWidget.getId());
+      gapIndex = findFreeIndex(fromIndex);
+    }
+    if (existingIndex != null && existingIndex > fromIndex && existingIndex < gapIndex) {
+      // Reach the position of source widget. It means a gap too.
+      gapIndex = existingIndex;
+    }
+    if (gapIndex <= fromIndex) {
+      return 0;
+    }
+    shiftIndexes(fromIndex, gapIndex);
+    // Indexes up to the gap are all taken
+    return gapIndex - fromIndex;
+  }
+
+  abstract int getMaxIndex();
+
+  /** Returns the current index of a stored widget, or null for a new one. */
+  abstract Integer getIndexById(Long widgetId);
+
+  abstract int findFreeIndex(int fromIndex);
+
+  abstract void shiftIndexes(int fromIndex, int toIndex);
+
+  abstract List<Widget> getAllOrdered();
+
+  /** Stores all widgets, given indexes from the first one by the step in the same order. */
+  abstract void storeSpread(List<Widget> widgets, int firstIndex, int step);
+
+  /**
+   * Gives all widgets indexes from the lowest one by the index step, or by a smaller step if they
+   * don't fit. Returns the new index of the widget which had the given one.
+   */
+  private int spreadIndexes(int fromIndex) {
+    List<Widget> widgets = getAllOrdered();
+    int firstIndex = widgets.get(0).getIndex();
+    long maxStep = ((long) Integer.MAX_VALUE - firstIndex) / (widgets.size() + 1);
+    int step = (int) Math.max(1, Math.min(indexStep, maxStep));
+    int newFromIndex = fromIndex;
+    for (int i = 0; i < widgets.size(); i++) {
+      Widget widget = widgets.get(i);
+      if (widget.getIndex() == fromIndex) {
+        newFromIndex = firstIndex + i * step;
+      }
+      widget.setIndex(firstIndex + i * step);
+    }
+    storeSpread(widgets, firstIndex, step);
+    return newFromIndex;
+  }
+}
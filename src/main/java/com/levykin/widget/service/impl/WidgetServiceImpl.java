@@ -2,32 +2,102 @@ package com.levykin.widget.service.impl;
 
 import com.levykin.widget.dao.WidgetDao;
 import com.levykin.widget.model.AreaFilter;
+import com.levykin.widget.model.BatchOperation;
+import com.levykin.widget.model.Tile;
 import com.levykin.widget.model.Widget;
+import com.levykin.widget.service.WidgetChangeSubscriber;
 import com.levykin.widget.service.WidgetService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.domain.Slice;
-import org.springframework.data.domain.SliceImpl;
 import org.springframework.stereotype.Service;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
-import java.util.Iterator;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 @Service
 public class WidgetServiceImpl implements WidgetService {
 
+  private final Timer sharedLockWait;
+
+  private final Timer exclusiveLockWait;
+
+  // Recorded for every write which takes the lock exclusively, so long cascades stand out
+  private final DistributionSummary shiftedWidgets;
+
+  private final Counter indexSpreads;
+
   @Autowired private WidgetDao dao;
 
+  @Autowired private WidgetChangeFeed changeFeed;
+
   @Value("${widget-application.max-page-size:500}")
   private int maxPageSize;
 
   @Value("${widget-application.default-page-size:100}")
   private int defaultPageSize;
 
+  @Value("${widget-application.concurrent-appends:true}")
+  private boolean concurrentAppends;
+
+  // Distance between indexes given on top of the stack. Gaps let later insertions
+  // below the top shift a few widgets only, till the gap is filled.
+  @Value("${widget-application.index-step:1}")
+  private int indexStep;
+
+  // Length of a run of indexes which is spread by the index step instead of being shifted
+  @Value("${widget-application.index-rebalance-threshold:64}")
+  private int rebalanceThreshold;
+
+  // Writes which keep their index or go on top of the stack share the lock,
+  // writes which may shift other widgets hold it exclusively. Reads never take it.
+  private final ReadWriteLock indexLock = new ReentrantReadWriteLock();
+
+  // Changes of the same widget are stored and published under its lock, so they are published
+  // in the order they are stored
+  private final Object[] widgetLocks = new Object[64];
+
+  {
+    Arrays.setAll(widgetLocks, i -> new Object());
+  }
+
+  // The latest index given to an append which can be not stored yet
+  private final AtomicInteger reservedTopIndex = new AtomicInteger(Integer.MIN_VALUE);
+
+  // Changed after every write, failed ones too, as they could have stored a part
+  private final AtomicLong version = new AtomicLong();
+
+  private volatile long lastModified = System.currentTimeMillis();
+
+  public WidgetServiceImpl(MeterRegistry registry) {
+    sharedLockWait = registry.timer("widget.lock.wait", "mode", "shared");
+    exclusiveLockWait = registry.timer("widget.lock.wait", "mode", "exclusive");
+    shiftedWidgets =
+        DistributionSummary.builder("widget.index.shifted").baseUnit("widgets").register(registry);
+    indexSpreads = registry.counter("widget.index.spreads");
+  }
+
   @Override
   public Widget get(long id) {
     return dao.get(id);
@@ -35,7 +105,18 @@ public class WidgetServiceImpl implements WidgetService {
 
   @Override
   public void delete(long id) {
-    dao.delete(id);
+    // Shared, so the deletion does not interleave with changes of many widgets
+    Lock sharedLock = indexLock.readLock();
+    lock(sharedLock, sharedLockWait);
+    try {
+      synchronized (getWidgetLock(id)) {
+        dao.delete(id);
+        changeFeed.deleted(id);
+      }
+    } finally {
+      countChange();
+      sharedLock.unlock();
+    }
   }
 
   @Override
@@ -49,114 +130,253 @@ public class WidgetServiceImpl implements WidgetService {
     if (area == null) {
       return dao.getAll(pageable);
     }
-    return getAllFiltered(pageable, area);
+    return dao.getAll(pageable, area);
   }
 
   @Override
-  public synchronized long create(Widget widget) {
-    widget.setId(null);
-    widget.setModificationDate(new Date());
-    takeIndexAndShiftNext(widget);
-    return dao.add(widget);
+  public Slice<Widget> getAllAfter(int afterIndex, Integer size, AreaFilter area) {
+    int pageSize = size != null ? Math.min(maxPageSize, size) : defaultPageSize;
+    Pageable pageable = PageRequest.of(0, pageSize, SORT_BY_INDEX);
+    if (area == null) {
+      return dao.getAllAfter(afterIndex, pageable);
+    }
+    return dao.getAllAfter(afterIndex, pageable, area);
   }
 
   @Override
-  public synchronized Widget update(Widget widget) {
-    widget.setModificationDate(new Date());
-    takeIndexAndShiftNext(widget);
-    dao.update(widget);
-    return widget;
+  public long count(AreaFilter area) {
+    return area == null ? dao.count() : dao.count(area);
   }
 
-  private Pageable getDefaultPageable() {
-    return PageRequest.of(0, defaultPageSize, SORT_BY_INDEX);
+  @Override
+  public List<Tile> getTiles(AreaFilter area, int columns, int rows) {
+    return dao.getTiles(area, columns, rows);
   }
 
-  private Slice<Widget> getAllFiltered(Pageable pageable, AreaFilter area) {
-    // We need to know if there are exist any more matched widgets
-    int limit = pageable.getPageSize() + 1;
+  @Override
+  public void forEachOrdered(Consumer<? super Widget> action) {
+    dao.forEachOrdered(action);
+  }
 
-    List<Widget> widgets = getFilteredPart(pageable, area, limit);
+  @Override
+  public void subscribe(Long afterSequence, WidgetChangeSubscriber subscriber) {
+    changeFeed.subscribe(afterSequence, subscriber);
+  }
 
-    boolean hasNext = widgets.size() > pageable.getPageSize();
-    List<Widget> content = hasNext ? widgets.subList(0, pageable.getPageSize()) : widgets;
+  @Override
+  public void unsubscribe(WidgetChangeSubscriber subscriber) {
+    changeFeed.unsubscribe(subscriber);
+  }
 
-    return new SliceImpl<>(content, pageable, hasNext);
+  @Override
+  public long getVersion() {
+    return version.get();
   }
 
-  private List<Widget> getFilteredPart(Pageable pageable, AreaFilter area, int limit) {
-    int from = pageable.getPageNumber() * pageable.getPageSize();
-    Iterable<Widget> widgetIterable = dao.getAll(pageable.getSort());
-    Iterator<Widget> iterator = widgetIterable.iterator();
-    int offsetCounter = 0;
-    List<Widget> widgets = new ArrayList<>(limit);
-    while (iterator.hasNext() && widgets.size() < limit) {
-      Widget widget = iterator.next();
-      if (!area.match(widget)) {
-        continue;
-      }
-      if (offsetCounter++ < from) {
-        continue;
-      }
-      widgets.add(widget);
-    }
-    return widgets;
+  @Override
+  public long getLastModified() {
+    return lastModified;
   }
 
-  private int getMaxIndex() {
-    Iterator<Widget> iterator = dao.getAll(SORT_BY_INDEX_DESC).iterator();
-    if (iterator.hasNext()) {
-      return iterator.next().getIndex();
+  @Override
+  public long create(Widget widget) {
+    widget.setId(null);
+    widget.setModificationDate(new Date());
+    try {
+      return write(
+          widget,
+          () -> {
+            long id = dao.add(widget);
+            changeFeed.created(id, widget);
+            return id;
+          });
+    } finally {
+      countChange();
     }
-    return 0;
   }
 
-  private void takeIndexAndShiftNext(Widget activeWidget) {
-    int maxIndex = getMaxIndex();
-    if (activeWidget.getIndex() == null || activeWidget.getIndex() > maxIndex) {
-      activeWidget.setIndex(maxIndex + 1);
-      return; // Nothing to shift. Use latest index.
+  @Override
+  public Widget update(Widget widget) {
+    widget.setModificationDate(new Date());
+    try {
+      return write(
+          widget,
+          () -> {
+            synchronized (getWidgetLock(widget.getId())) {
+              dao.update(widget);
+              changeFeed.updated(widget);
+            }
+            return widget;
+          });
+    } finally {
+      countChange();
     }
+  }
 
-    Integer existingIndex = getIndexById(activeWidget.getId());
-    if (activeWidget.getIndex().equals(existingIndex)) {
-      return;
-    }
+  @Override
+  public List<Long> applyBatch(List<BatchOperation> operations) {
+    Lock exclusiveLock = indexLock.writeLock();
+    lock(exclusiveLock, exclusiveLockWait);
+    try {
+      WidgetBatchPlan plan = new WidgetBatchPlan(dao, indexStep, rebalanceThreshold);
+      for (BatchOperation operation : operations) {
+        switch (operation.getType()) {
+          case CREATE:
+            plan.create(operation.getWidget());
+            break;
+          case UPDATE:
+            operation.getWidget().setId(operation.getId());
+            plan.update(operation.getWidget());
+            break;
+          case DELETE:
+            plan.delete(operation.getId());
+            break;
+        }
+      }
+      List<Widget> changedWidgets = plan.getChangedWidgets();
+      // Storing gives ids to the created widgets
+      Set<Widget> createdWidgets = Collections.newSetFromMap(new IdentityHashMap<>());
+      changedWidgets.stream().filter(widget -> widget.getId() == null).forEach(createdWidgets::add);
+      List<Long> changedIds = dao.applyBatch(plan.getDeletedIds(), changedWidgets);
+      reservedTopIndex.set(Integer.MIN_VALUE);
 
-    List<Widget> widgetsToShift =
-        getNextWidgetsToShift(activeWidget.getIndex(), activeWidget.getId());
-    // Shifting widgets in reverse order
-    for (int i = widgetsToShift.size() - 1; i >= 0; i--) {
-      Widget widget = widgetsToShift.get(i);
-      widget.setIndex(widget.getIndex() + 1);
-      dao.update(widget);
+      plan.getDeletedIds().forEach(changeFeed::deleted);
+      Map<Widget, Long> createdIds = new IdentityHashMap<>();
+      for (int i = 0; i < changedWidgets.size(); i++) {
+        Widget widget = changedWidgets.get(i);
+        if (createdWidgets.contains(widget)) {
+          changeFeed.created(changedIds.get(i), widget);
+        } else {
+          changeFeed.updated(widget);
+        }
+        createdIds.put(widget, changedIds.get(i));
+      }
+      return operations.stream()
+          .map(
+              operation ->
+                  operation.getType() == BatchOperation.Type.CREATE
+                      ? createdIds.get(operation.getWidget())
+                      : operation.getId())
+          .collect(Collectors.toList());
+    } finally {
+      countChange();
+      exclusiveLock.unlock();
     }
   }
 
-  private List<Widget> getNextWidgetsToShift(int fromIndex, Long activeWidgetId) {
-    int prevWidgetIndex = fromIndex;
-    List<Widget> widgetsToShift = new ArrayList<>();
-    Iterable<Widget> widgets = dao.getAll(SORT_BY_INDEX);
-    for (Widget widget : widgets) {
-      Integer widgetIndex = widget.getIndex();
-      if (fromIndex > widgetIndex) {
-        continue;
-      }
-      if (widgetIndex - prevWidgetIndex > 1) {
-        // Reach a gap
-        break;
-      }
-      if (widget.getId().equals(activeWidgetId)) {
-        // Reach the position of source widget. It means a gap too.
-        break;
+  // Counted after the write, so a version read before widgets is never newer than them
+  private void countChange() {
+    lastModified = System.currentTimeMillis();
+    version.incrementAndGet();
+  }
+
+  private <T> T write(Widget widget, Supplier<T> storing) {
+    if (concurrentAppends) {
+      Lock sharedLock = indexLock.readLock();
+      lock(sharedLock, sharedLockWait);
+      try {
+        if (takeIndexWithoutShift(widget)) {
+          return storing.get();
+        }
+      } finally {
+        sharedLock.unlock();
       }
-      prevWidgetIndex = widgetIndex;
-      widgetsToShift.add(widget);
     }
-    return widgetsToShift;
+    Lock exclusiveLock = indexLock.writeLock();
+    lock(exclusiveLock, exclusiveLockWait);
+    try {
+      shiftedWidgets.record(new StoreIndexes().takeIndexAndShiftNext(widget));
+      // No appends are in flight, so the store knows the top index again
+      reservedTopIndex.set(Integer.MIN_VALUE);
+      return storing.get();
+    } finally {
+      exclusiveLock.unlock();
+    }
+  }
+
+  private static void lock(Lock lock, Timer waitTimer) {
+    long start = System.nanoTime();
+    lock.lock();
+    waitTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+  }
+
+  private Pageable getDefaultPageable() {
+    return PageRequest.of(0, defaultPageSize, SORT_BY_INDEX);
+  }
+
+  private int getMaxIndex() {
+    return dao.maxIndex().orElse(0);
+  }
+
+  private boolean takeIndexWithoutShift(Widget activeWidget) {
+    Integer index = activeWidget.getIndex();
+    if (index == null || index > getMaxIndex()) {
+      activeWidget.setIndex(reserveTopIndex());
+      return true;
+    }
+    return index.equals(getIndexById(activeWidget.getId()));
+  }
+
+  private int reserveTopIndex() {
+    int reservedIndex;
+    int topIndex;
+    do {
+      reservedIndex = reservedTopIndex.get();
+      topIndex =
+          WidgetIndexes.getNextTopIndex(Math.max(reservedIndex, getMaxIndex()), indexStep);
+    } while (!reservedTopIndex.compareAndSet(reservedIndex, topIndex));
+    return topIndex;
+  }
+
+  private Object getWidgetLock(long id) {
+    return widgetLocks[Long.hashCode(id) & (widgetLocks.length - 1)];
   }
 
   private Integer getIndexById(Long widgetId) {
     return widgetId != null ? dao.get(widgetId).getIndex() : null;
   }
+
+  // The index rules applied right to the store
+  private class StoreIndexes extends WidgetIndexes {
+
+    StoreIndexes() {
+      super(indexStep, rebalanceThreshold);
+    }
+
+    @Override
+    int getMaxIndex() {
+      return WidgetServiceImpl.this.getMaxIndex();
+    }
+
+    @Override
+    Integer getIndexById(Long widgetId) {
+      return WidgetServiceImpl.this.getIndexById(widgetId);
+    }
+
+    @Override
+    int findFreeIndex(int fromIndex) {
+      return dao.findFreeIndex(fromIndex);
+    }
+
+    @Override
+    void shiftIndexes(int fromIndex, int toIndex) {
+      dao.shiftIndexes(fromIndex, toIndex);
+      changeFeed.shifted(fromIndex, toIndex);
+    }
+
+    @Override
+    List<Widget> getAllOrdered() {
+      List<Widget> widgets = new ArrayList<>();
+      dao.getAll(SORT_BY_INDEX).forEach(widgets::add);
+      return widgets;
+    }
+
+    @Override
+    void storeSpread(List<Widget> widgets, int firstIndex, int step) {
+      dao.saveAll(widgets);
+      // Subscribers spread their widgets the same way, as they shift them
+      changeFeed.spread(firstIndex, step);
+      indexSpreads.increment();
+    }
+  }
 }
@@ -5,26 +5,41 @@ import com.fasterxml.jackson.databind.type.CollectionType;
 import com.fasterxml.jackson.databind.type.TypeFactory;
 import com.levykin.widget.dao.WidgetDao;
 import com.levykin.widget.dao.impl.JavaInMemoryWidgetDao;
+import com.levykin.widget.exception.WidgetNotFoundException;
+import com.levykin.widget.model.BatchOperation;
+import com.levykin.widget.model.IdentifierResponse;
 import com.levykin.widget.model.PagedResponse;
 import com.levykin.widget.model.Widget;
 import com.levykin.widget.service.WidgetService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.context.annotation.Profile;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.context.request.ServletWebRequest;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @SpringBootTest
@@ -43,7 +58,7 @@ class WidgetControllerIntegrationTest {
 
   @BeforeEach
   private void resetDao() {
-    dao = new JavaInMemoryWidgetDao();
+    dao = new JavaInMemoryWidgetDao(new SimpleMeterRegistry());
     ReflectionTestUtils.setField(service, "dao", dao);
   }
 
@@ -59,14 +74,16 @@ class WidgetControllerIntegrationTest {
 
   @Test
   void shouldContainsNoWidgetsOnEmptyStorage() {
-    PagedResponse<Widget> response = controller.list(null, null, null, null, null, null);
+    PagedResponse<Widget> response =
+        controller.list(null, null, null, null, null, null, null, false, newRequest());
     assertTrue(response.getContent().isEmpty());
   }
 
   @Test
   void shouldContainsWidgetsOnDefaultPage() {
     initWidgetsWithSpecifiedIndexes(0, 1, 5);
-    PagedResponse<Widget> response = controller.list(null, null, null, null, null, null);
+    PagedResponse<Widget> response =
+        controller.list(null, null, null, null, null, null, null, false, newRequest());
     assertFalse(response.getContent().isEmpty());
   }
 
@@ -84,10 +101,25 @@ class WidgetControllerIntegrationTest {
   @Test
   void shouldContainsWidgetsOnPageOne() throws IOException {
     initTestWidgetsFromJsonFile();
-    PagedResponse<Widget> response = controller.list(1, 5, null, null, null, null);
+    PagedResponse<Widget> response =
+        controller.list(1, 5, null, null, null, null, null, false, newRequest());
     assertFalse(response.getContent().isEmpty());
   }
 
+  @Test
+  void shouldWalkThroughAllWidgetsWithCursor() throws IOException {
+    initTestWidgetsFromJsonFile();
+    List<Integer> indexes = new ArrayList<>();
+    Integer cursor = Integer.MIN_VALUE;
+    while (cursor != null) {
+      PagedResponse<Widget> response =
+          controller.list(null, 5, cursor, null, null, null, null, false, newRequest());
+      response.getContent().forEach(widget -> indexes.add(widget.getIndex()));
+      cursor = response.getNextCursor();
+    }
+    assertEquals(IntStream.range(0, 12).boxed().collect(Collectors.toList()), indexes);
+  }
+
   //  0  1  2  3  4  5  6  7  8  9
   // [1][2][3][4][5][6][7][8][9][10]
   // [1][2][_][4][_][_][7][8][9][_]
@@ -95,7 +127,8 @@ class WidgetControllerIntegrationTest {
   void shouldNotContainsDeleted() {
     initWidgetsWithSpecifiedIndexes(0, 1, 2, 3, 4, 5, 6, 7, 8, 9);
     Arrays.asList(3L, 5L, 6L, 10L).forEach(id -> controller.delete(id));
-    PagedResponse<Widget> response = controller.list(0, 10, null, null, null, null);
+    PagedResponse<Widget> response =
+        controller.list(0, 10, null, null, null, null, null, false, newRequest());
     Set<Long> ids = response.getContent().stream().map(Widget::getId).collect(Collectors.toSet());
     assertFalse(ids.contains(3L));
     assertFalse(ids.contains(5L));
@@ -146,6 +179,140 @@ class WidgetControllerIntegrationTest {
     assertEquals(11, controller.get(8L).getIndex());
   }
 
+  @Test
+  void shouldTakeDistinctIndexesOnConcurrentCreation() throws Exception {
+    initWidgetsWithSpecifiedIndexes(0, 1, 2);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    List<Callable<Long>> creations = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      Widget widget = new Widget();
+      // Every tenth widget goes to the bottom of the stack and shifts the others
+      widget.setIndex(i % 10 == 0 ? 0 : null);
+      creations.add(() -> controller.create(widget).getId());
+    }
+    for (Future<Long> future : executor.invokeAll(creations)) {
+      future.get();
+    }
+    executor.shutdown();
+    PagedResponse<Widget> response =
+        controller.list(0, 200, null, null, null, null, null, false, newRequest());
+    Set<Integer> indexes =
+        response.getContent().stream().map(Widget::getIndex).collect(Collectors.toSet());
+    assertEquals(103, indexes.size());
+  }
+
+  //  10 11 12    20    30    40    50
+  // [1]         [2]   [3]
+  // [5][4][1]   [2]   [3]
+  // [6][5]      [4]   [1]   [2]   [3]
+  @Test
+  void shouldSpreadIndexesByStepKeepingOrder() {
+    ReflectionTestUtils.setField(service, "indexStep", 10);
+    ReflectionTestUtils.setField(service, "rebalanceThreshold", 2);
+    try {
+      for (int i = 0; i < 3; i++) {
+        controller.create(new Widget());
+      }
+      for (int i = 0; i < 3; i++) {
+        Widget widget = new Widget();
+        widget.setIndex(10);
+        controller.create(widget);
+      }
+      PagedResponse<Widget> response =
+          controller.list(0, 10, null, null, null, null, null, false, newRequest());
+      assertEquals(
+          Arrays.asList(6L, 5L, 4L, 1L, 2L, 3L),
+          response.getContent().stream().map(Widget::getId).collect(Collectors.toList()));
+      assertEquals(
+          Arrays.asList(10, 11, 20, 30, 40, 50),
+          response.getContent().stream().map(Widget::getIndex).collect(Collectors.toList()));
+    } finally {
+      ReflectionTestUtils.setField(service, "indexStep", 1);
+      ReflectionTestUtils.setField(service, "rebalanceThreshold", 64);
+    }
+  }
+
+  @Test
+  void shouldCountWidgetsInAreaWithTotal() throws IOException {
+    initTestWidgetsFromJsonFile();
+    PagedResponse<Widget> response =
+        controller.list(0, 1, null, 0, 0, 100, 100, true, newRequest());
+    PagedResponse<Widget> allWidgets =
+        controller.list(0, 100, null, 0, 0, 100, 100, false, newRequest());
+    assertEquals(allWidgets.getContent().size(), response.getTotal());
+    assertNull(allWidgets.getTotal());
+    assertEquals(
+        12, controller.list(null, 5, 0, null, null, null, null, true, newRequest()).getTotal());
+  }
+
+  //  1  2  3  4
+  // [1][2][3][4]
+  // [5][1][2][_][4][6]
+  @Test
+  void shouldApplyBatchOperationsInOrder() {
+    initWidgetsWithSpecifiedIndexes(1, 2, 3, 4);
+    List<IdentifierResponse> ids =
+        controller.batch(
+            Arrays.asList(
+                getBatchOperation(BatchOperation.Type.DELETE, 3L, null),
+                getBatchOperation(BatchOperation.Type.CREATE, null, getValidWidget(1)),
+                getBatchOperation(BatchOperation.Type.UPDATE, 4L, getValidWidget(5)),
+                getBatchOperation(BatchOperation.Type.CREATE, null, getValidWidget(null))));
+    assertEquals(
+        Arrays.asList(3L, 5L, 4L, 6L),
+        ids.stream().map(IdentifierResponse::getId).collect(Collectors.toList()));
+    assertEquals(1, controller.get(5L).getIndex());
+    assertEquals(2, controller.get(1L).getIndex());
+    assertEquals(3, controller.get(2L).getIndex());
+    assertEquals(5, controller.get(4L).getIndex());
+    assertEquals(6, controller.get(6L).getIndex());
+    assertThrows(WidgetNotFoundException.class, () -> controller.get(3L));
+  }
+
+  @Test
+  void shouldNotApplyBatchWithAbsentWidget() {
+    initWidgetsWithSpecifiedIndexes(1, 2);
+    assertThrows(
+        WidgetNotFoundException.class,
+        () ->
+            controller.batch(
+                Arrays.asList(
+                    getBatchOperation(BatchOperation.Type.CREATE, null, getValidWidget(1)),
+                    getBatchOperation(BatchOperation.Type.DELETE, 10L, null))));
+    assertEquals(1, controller.get(1L).getIndex());
+    assertEquals(2, controller.get(2L).getIndex());
+    assertEquals(
+        2,
+        controller
+            .list(0, 10, null, null, null, null, null, false, newRequest())
+            .getContent()
+            .size());
+  }
+
+  private BatchOperation getBatchOperation(BatchOperation.Type type, Long id, Widget widget) {
+    BatchOperation operation = new BatchOperation();
+    operation.setType(type);
+    operation.setId(id);
+    operation.setWidget(widget);
+    return operation;
+  }
+
+  // Passes validation of both creation and update
+  private static Widget getValidWidget(Integer index) {
+    Widget widget = new Widget();
+    widget.setX(0);
+    widget.setY(0);
+    widget.setWidth(10f);
+    widget.setHeight(10f);
+    widget.setIndex(index);
+    return widget;
+  }
+
+  // A request without conditions, as the controller gets it over HTTP
+  private static ServletWebRequest newRequest() {
+    return new ServletWebRequest(new MockHttpServletRequest(), new MockHttpServletResponse());
+  }
+
   private void initWidgetsWithSpecifiedIndexes(Integer... indexes) {
     for (Integer index : indexes) {
       Widget widget = new Widget();
@@ -1,7 +1,10 @@
 package com.levykin.widget.controller;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 import com.levykin.widget.exception.WidgetNotFoundException;
+import com.levykin.widget.model.BatchOperation;
 import com.levykin.widget.model.Widget;
 import com.levykin.widget.service.WidgetService;
 import org.junit.jupiter.api.Test;
@@ -14,22 +17,37 @@ import org.springframework.data.domain.PageRequest;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
+import java.util.function.Consumer;
 
+import static org.hamcrest.Matchers.hasItem;
 import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 @SpringBootTest
@@ -66,6 +84,34 @@ class WidgetControllerTest {
         .andExpect(jsonPath("$.content", hasSize(NUMBER_OF_TEST_WIDGETS)));
   }
 
+  @Test
+  void shouldStreamWidgetsAsNewlineDelimitedJson() throws Exception {
+    List<Widget> widgets = new ArrayList<>();
+    StringBuilder expectedContent = new StringBuilder();
+    for (int i = 0; i < NUMBER_OF_TEST_WIDGETS; i++) {
+      Widget widget = new Widget();
+      widget.setId((long) i);
+      widget.setIndex(i);
+      widgets.add(widget);
+      expectedContent.append(objectMapper.writeValueAsString(widget)).append('\n');
+    }
+    doAnswer(
+            invocation -> {
+              Consumer<Widget> action = invocation.getArgument(0);
+              widgets.forEach(action);
+              return null;
+            })
+        .when(widgetService)
+        .forEachOrdered(any());
+    MvcResult result =
+        mockMvc.perform(get("/widget/stream")).andExpect(request().asyncStarted()).andReturn();
+    mockMvc
+        .perform(asyncDispatch(result))
+        .andExpect(status().isOk())
+        .andExpect(content().contentType(WidgetController.APPLICATION_NDJSON_VALUE))
+        .andExpect(content().string(expectedContent.toString()));
+  }
+
   @Test
   void shouldReturnExistingWidgetOnGet() throws Exception {
     Widget widget = new Widget();
@@ -80,6 +126,72 @@ class WidgetControllerTest {
         .andExpect(status().isOk());
   }
 
+  @Test
+  void shouldNegotiateBinaryFormats() throws Exception {
+    Widget widget = new Widget();
+    widget.setId(1L);
+    widget.setIndex(7);
+    when(widgetService.get(1L)).thenReturn(widget);
+    MvcResult result =
+        mockMvc
+            .perform(get("/widget/1").accept(MediaType.APPLICATION_CBOR))
+            .andExpect(status().isOk())
+            .andExpect(content().contentType(MediaType.APPLICATION_CBOR))
+            .andReturn();
+    ObjectMapper cborMapper = new ObjectMapper(new CBORFactory());
+    Widget received =
+        cborMapper.readValue(result.getResponse().getContentAsByteArray(), Widget.class);
+    assertEquals(7, received.getIndex());
+
+    MediaType smile = MediaType.valueOf("application/x-jackson-smile");
+    Widget created = new Widget();
+    created.setX(1);
+    created.setY(2);
+    created.setWidth(10f);
+    created.setHeight(20f);
+    when(widgetService.create(any(Widget.class))).thenReturn(5L);
+    mockMvc
+        .perform(
+            post("/widget")
+                .content(new ObjectMapper(new SmileFactory()).writeValueAsBytes(created))
+                .contentType(smile)
+                .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.id", is(5)));
+  }
+
+  @Test
+  void shouldWriteOnlyRequestedFields() throws Exception {
+    Widget widget = new Widget();
+    widget.setId(1L);
+    widget.setX(3);
+    widget.setIndex(7);
+    when(widgetService.get(1L)).thenReturn(widget);
+    mockMvc
+        .perform(get("/widget/1").param("fields", "id, index"))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.id", is(1)))
+        .andExpect(jsonPath("$.index", is(7)))
+        .andExpect(jsonPath("$.x").doesNotExist());
+    mockMvc
+        .perform(get("/widget/1"))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.x", is(3)));
+
+    when(widgetService.getAll(isNull(), isNull()))
+        .thenReturn(new PageImpl<>(Collections.singletonList(widget)));
+    mockMvc
+        .perform(get("/widget").param("fields", "x"))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.total", is(1)))
+        .andExpect(jsonPath("$.content[0].x", is(3)))
+        .andExpect(jsonPath("$.content[0].id").doesNotExist());
+
+    mockMvc
+        .perform(get("/widget/1").param("fields", "id,color"))
+        .andExpect(status().isBadRequest());
+  }
+
   @Test
   void shouldReturnNotFoundStatusWhenOnNotFoundException() throws Exception {
     when(widgetService.get(anyLong())).thenThrow(new WidgetNotFoundException(1L));
@@ -123,6 +235,19 @@ class WidgetControllerTest {
         .andExpect(status().isBadRequest());
   }
 
+  @Test
+  void shouldRejectPageWithCursorEvenIfNotModified() throws Exception {
+    mockMvc
+        .perform(
+            get("/widget")
+                .param("page", "1")
+                .param("after_index", "5")
+                .header(HttpHeaders.IF_NONE_MATCH, "*"))
+        .andExpect(content().contentType(MediaType.APPLICATION_JSON))
+        .andExpect(status().isBadRequest());
+    verify(widgetService, never()).getAllAfter(anyInt(), any(), any());
+  }
+
   @Test
   void shouldReturnBadRequestOnValidationErrorsOnCreation() throws Exception {
     Widget widget = new Widget();
@@ -183,4 +308,98 @@ class WidgetControllerTest {
                 .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON))
         .andExpect(status().isOk());
   }
+
+  @Test
+  void shouldReturnBadRequestOnInvalidBatchOperation() throws Exception {
+    Widget widget = new Widget();
+    widget.setX(1);
+    BatchOperation operation = new BatchOperation();
+    operation.setType(BatchOperation.Type.CREATE);
+    operation.setWidget(widget);
+    mockMvc
+        .perform(
+            post("/widget/batch")
+                .content(objectMapper.writeValueAsString(Collections.singletonList(operation)))
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON))
+        .andExpect(status().isBadRequest());
+    verify(widgetService, never()).applyBatch(any());
+  }
+
+  @Test
+  void shouldReturnNotModifiedListWhileVersionIsTheSame() throws Exception {
+    when(widgetService.getVersion()).thenReturn(5L);
+    when(widgetService.getAll(isNull(), isNull())).thenReturn(new PageImpl<>(new ArrayList<>()));
+    String tag =
+        mockMvc
+            .perform(get("/widget"))
+            .andExpect(status().isOk())
+            .andReturn()
+            .getResponse()
+            .getHeader(HttpHeaders.ETAG);
+    mockMvc
+        .perform(get("/widget").header(HttpHeaders.IF_NONE_MATCH, tag))
+        .andExpect(status().isNotModified())
+        .andExpect(content().string(""));
+    verify(widgetService, times(1)).getAll(isNull(), isNull());
+
+    when(widgetService.getVersion()).thenReturn(6L);
+    mockMvc
+        .perform(get("/widget").header(HttpHeaders.IF_NONE_MATCH, tag))
+        .andExpect(status().isOk());
+  }
+
+  @Test
+  void shouldTagEachRepresentationOfListApart() throws Exception {
+    when(widgetService.getVersion()).thenReturn(5L);
+    when(widgetService.getAll(isNull(), isNull())).thenReturn(new PageImpl<>(new ArrayList<>()));
+    String tag =
+        mockMvc
+            .perform(get("/widget"))
+            .andExpect(header().stringValues(HttpHeaders.VARY, hasItem(HttpHeaders.ACCEPT)))
+            .andReturn()
+            .getResponse()
+            .getHeader(HttpHeaders.ETAG);
+    mockMvc
+        .perform(get("/widget").param("fields", "id").header(HttpHeaders.IF_NONE_MATCH, tag))
+        .andExpect(status().isOk());
+    mockMvc
+        .perform(
+            get("/widget")
+                .header(HttpHeaders.ACCEPT, "application/cbor")
+                .header(HttpHeaders.IF_NONE_MATCH, tag))
+        .andExpect(status().isOk());
+    mockMvc
+        .perform(get("/widget").param("fields", "unknown").header(HttpHeaders.IF_NONE_MATCH, tag))
+        .andExpect(status().isBadRequest());
+  }
+
+  @Test
+  void shouldReturnNotModifiedWidgetWhileItIsTheSame() throws Exception {
+    Widget widget = new Widget();
+    widget.setId(1L);
+    widget.setIndex(1);
+    widget.setModificationDate(new Date());
+    when(widgetService.get(1L)).thenReturn(widget);
+    String tag =
+        mockMvc
+            .perform(get("/widget/1"))
+            .andExpect(status().isOk())
+            .andReturn()
+            .getResponse()
+            .getHeader(HttpHeaders.ETAG);
+    mockMvc
+        .perform(get("/widget/1").header(HttpHeaders.IF_NONE_MATCH, tag))
+        .andExpect(status().isNotModified())
+        .andExpect(content().string(""));
+
+    // A shift changes the index only
+    widget.setIndex(2);
+    mockMvc
+        .perform(get("/widget/1").header(HttpHeaders.IF_MODIFIED_SINCE, new Date()))
+        .andExpect(status().isOk());
+    mockMvc
+        .perform(get("/widget/1").header(HttpHeaders.IF_NONE_MATCH, tag))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.index", is(2)));
+  }
 }
@@ -0,0 +1,84 @@
+package com.levykin.widget.controller;
+
+import com.levykin.widget.exception.WidgetNotFoundException;
+import com.levykin.widget.model.Widget;
+import com.levykin.widget.service.ReactiveWidgetService;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.reactive.AutoConfigureWebTestClient;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import reactor.core.publisher.Mono;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@SpringBootTest(properties = "spring.main.web-application-type=reactive")
+@ActiveProfiles({"java-in-memory-storage", "reactive-web"})
+@AutoConfigureWebTestClient
+class WidgetRouterTest {
+
+  @Autowired private WebTestClient webTestClient;
+
+  @MockBean private ReactiveWidgetService widgetService;
+
+  @Test
+  void shouldReturnWidgetById() {
+    Widget widget = new Widget();
+    widget.setId(1L);
+    widget.setIndex(3);
+    when(widgetService.get(1L)).thenReturn(Mono.just(widget));
+    webTestClient
+        .get()
+        .uri("/widget/1")
+        .exchange()
+        .expectStatus()
+        .isOk()
+        .expectBody()
+        .jsonPath("$.index")
+        .isEqualTo(3);
+  }
+
+  @Test
+  void shouldReturnNotFoundStatusWhenOnNotFoundException() {
+    when(widgetService.get(2L)).thenReturn(Mono.error(new WidgetNotFoundException(2L)));
+    webTestClient
+        .get()
+        .uri("/widget/2")
+        .exchange()
+        .expectStatus()
+        .isNotFound()
+        .expectBody()
+        .jsonPath("$.message")
+        .isEqualTo("Widget not found: 2");
+  }
+
+  @Test
+  void shouldReturnBadRequestStatusOnInvalidParameters() {
+    webTestClient.get().uri("/widget/one").exchange().expectStatus().isBadRequest();
+    webTestClient
+        .get()
+        .uri("/widget/tiles?area_x=0&area_y=0&area_width=0&area_height=10&columns=1&rows=1")
+        .exchange()
+        .expectStatus()
+        .isBadRequest();
+  }
+
+  @Test
+  void shouldNotCreateInvalidWidget() {
+    webTestClient
+        .post()
+        .uri("/widget")
+        .contentType(MediaType.APPLICATION_JSON)
+        .bodyValue("{\"x\": 0}")
+        .exchange()
+        .expectStatus()
+        .isBadRequest();
+    verify(widgetService, never()).create(any(Widget.class));
+  }
+}
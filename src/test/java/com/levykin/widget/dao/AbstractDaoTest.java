@@ -1,21 +1,36 @@
 package com.levykin.widget.dao;
 
 import com.levykin.widget.exception.WidgetNotFoundException;
+import com.levykin.widget.model.AreaFilter;
+import com.levykin.widget.model.Tile;
 import com.levykin.widget.model.Widget;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Slice;
 import org.springframework.data.domain.Sort;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.List;
+import java.util.OptionalInt;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.StreamSupport;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 abstract class AbstractDaoTest {
 
@@ -28,6 +43,12 @@ abstract class AbstractDaoTest {
     dao = getDao();
   }
 
+  private Widget getTestWidget(int index) {
+    Widget widget = getTestWidget();
+    widget.setIndex(index);
+    return widget;
+  }
+
   private Widget getTestWidget() {
     Widget widget = new Widget();
     widget.setX(1);
@@ -86,6 +107,23 @@ abstract class AbstractDaoTest {
     assertThrows(WidgetNotFoundException.class, () -> dao.delete(0L));
   }
 
+  @Test
+  void shouldReturnChangesOfWidgetsReadBefore() {
+    long first = dao.add(getTestWidget(1));
+    long second = dao.add(getTestWidget(2));
+    dao.get(first).setX(100);
+    Widget secondWidget = dao.get(second);
+    assertEquals(1, dao.get(first).getX());
+
+    dao.shiftIndexes(1, 2);
+    assertEquals(2, dao.get(first).getIndex());
+    secondWidget.setIndex(5);
+    dao.update(secondWidget);
+    assertEquals(5, dao.get(second).getIndex());
+    dao.deleteAll(Arrays.asList(first));
+    assertThrows(WidgetNotFoundException.class, () -> dao.get(first));
+  }
+
   @Test
   void widgetsShouldBePresentOnGetAllPageable() {
     Set<Long> createdIds = new HashSet<>();
@@ -99,4 +137,269 @@ abstract class AbstractDaoTest {
             .collect(Collectors.toSet());
     assertEquals(createdIds, gotIds);
   }
+
+  @Test
+  void widgetsShouldBeOrderedByIndexOnGetAll() {
+    for (int index : new int[] {5, -1, 3, 0, 4}) {
+      dao.add(getTestWidget(index));
+    }
+    assertEquals(Arrays.asList(-1, 0, 3, 4, 5), getIndexes(dao.getAll(Sort.by("index"))));
+    assertEquals(
+        Arrays.asList(5, 4, 3, 0, -1), getIndexes(dao.getAll(Sort.by("index").descending())));
+    assertEquals(
+        Arrays.asList(3, 4), getIndexes(dao.getAll(PageRequest.of(1, 2, Sort.by("index")))));
+  }
+
+  @Test
+  void shouldReturnPagesAtOffsetInBothDirections() {
+    for (int index = 0; index < 25; index++) {
+      dao.add(getTestWidget(index));
+    }
+    Page<Widget> page = dao.getAll(PageRequest.of(2, 10, Sort.by("index")));
+    assertEquals(IntStream.range(20, 25).boxed().collect(Collectors.toList()), getIndexes(page));
+    assertEquals(25, page.getTotalElements());
+    assertEquals(
+        Arrays.asList(14, 13, 12, 11, 10),
+        getIndexes(dao.getAll(PageRequest.of(2, 5, Sort.by("index").descending()))));
+    assertFalse(dao.getAll(PageRequest.of(3, 10, Sort.by("index"))).hasContent());
+  }
+
+  @Test
+  void shouldReturnMaxAndMinIndexes() {
+    assertEquals(OptionalInt.empty(), dao.maxIndex());
+    assertEquals(OptionalInt.empty(), dao.minIndex());
+    for (int index : new int[] {5, -1, 3}) {
+      dao.add(getTestWidget(index));
+    }
+    assertEquals(OptionalInt.of(5), dao.maxIndex());
+    assertEquals(OptionalInt.of(-1), dao.minIndex());
+  }
+
+  @Test
+  void shouldFindFreeIndexAfterRunOfIndexes() {
+    for (int index : new int[] {1, 2, 3, 5}) {
+      dao.add(getTestWidget(index));
+    }
+    assertEquals(0, dao.findFreeIndex(0));
+    assertEquals(4, dao.findFreeIndex(1));
+    assertEquals(4, dao.findFreeIndex(3));
+    assertEquals(6, dao.findFreeIndex(5));
+  }
+
+  @Test
+  void shouldShiftOnlyIndexesInRange() {
+    for (int index : new int[] {1, 2, 3, 5}) {
+      dao.add(getTestWidget(index));
+    }
+    dao.shiftIndexes(2, 4);
+    assertEquals(Arrays.asList(1, 3, 4, 5), getIndexes(dao.getAll(Sort.by("index"))));
+  }
+
+  @Test
+  void shouldReturnOnlyWidgetsInAreaOrderedByIndex() {
+    // Index is the same as x, the widgets 2 and 3 are partially outside of the area
+    for (int x : new int[] {4, 0, 3, 150, 1, 2}) {
+      Widget widget = getTestWidget(x);
+      widget.setX(x);
+      widget.setY(0);
+      widget.setWidth(x == 2 || x == 3 ? 200f : 10f);
+      widget.setHeight(10f);
+      dao.add(widget);
+    }
+    AreaFilter area = new AreaFilter(0, 0, 160, 10);
+    Sort sort = Sort.by("index");
+    assertEquals(
+        Arrays.asList(0, 1, 4, 150), getIndexes(dao.getAll(PageRequest.of(0, 10, sort), area)));
+    assertEquals(
+        Arrays.asList(150, 4, 1, 0),
+        getIndexes(dao.getAll(PageRequest.of(0, 10, sort.descending()), area)));
+  }
+
+  @Test
+  void shouldReturnAreaPagesWithNextPageFlag() {
+    for (int index = 0; index < 5; index++) {
+      Widget widget = getTestWidget(index);
+      widget.setX(index * 10);
+      dao.add(widget);
+    }
+    AreaFilter area = new AreaFilter(10, 0, 100, 10);
+    Slice<Widget> firstPage = dao.getAll(PageRequest.of(0, 2, Sort.by("index")), area);
+    assertEquals(Arrays.asList(1, 2), getIndexes(firstPage));
+    assertTrue(firstPage.hasNext());
+    Slice<Widget> lastPage = dao.getAll(PageRequest.of(1, 2, Sort.by("index")), area);
+    assertEquals(Arrays.asList(3, 4), getIndexes(lastPage));
+    assertFalse(lastPage.hasNext());
+  }
+
+  @Test
+  void shouldCountOnlyWidgetsInArea() {
+    int[][] bounds = {
+      {10, 10, 5, 5}, {10, 10, 95, 5}, {-5, 0, 5, 5}, {150, 20, 5, 5}, {50, 60, 40, 40}
+    };
+    for (int[] widgetBounds : bounds) {
+      Widget widget = getTestWidget();
+      widget.setX(widgetBounds[0]);
+      widget.setY(widgetBounds[1]);
+      widget.setWidth((float) widgetBounds[2]);
+      widget.setHeight((float) widgetBounds[3]);
+      dao.add(widget);
+    }
+    assertEquals(2, dao.count(new AreaFilter(0, 0, 100, 100)));
+    assertEquals(4, dao.count(new AreaFilter(-10, -10, 160, 160)));
+    assertEquals(0, dao.count(new AreaFilter(1000, 1000, 10, 10)));
+    assertEquals(5, dao.count());
+  }
+
+  @Test
+  void shouldCountWidgetsAndMaxIndexPerTile() {
+    int[][] widgets = {{0, 0, 1}, {10, 5, 7}, {49, 49, 2}, {50, 0, 3}, {99, 99, 4}, {100, 0, 5}};
+    for (int[] xyIndex : widgets) {
+      Widget widget = getTestWidget(xyIndex[2]);
+      widget.setX(xyIndex[0]);
+      widget.setY(xyIndex[1]);
+      widget.setWidth(0f);
+      widget.setHeight(0f);
+      dao.add(widget);
+    }
+    List<Tile> tiles = dao.getTiles(new AreaFilter(0, 0, 100, 100), 2, 2);
+    assertEquals(3, tiles.size());
+    assertTile(tiles.get(0), 0, 0, 3, 7);
+    assertTile(tiles.get(1), 1, 0, 2, 5);
+    assertTile(tiles.get(2), 1, 1, 1, 4);
+  }
+
+  private static void assertTile(Tile tile, int column, int row, long count, int maxIndex) {
+    assertEquals(column, tile.getColumn());
+    assertEquals(row, tile.getRow());
+    assertEquals(count, tile.getCount());
+    assertEquals(maxIndex, tile.getMaxIndex());
+  }
+
+  @Test
+  void shouldReturnWidgetsAfterIndex() {
+    for (int index : new int[] {5, -1, 3, 0, 4}) {
+      dao.add(getTestWidget(index));
+    }
+    Slice<Widget> firstPage = dao.getAllAfter(-1, PageRequest.of(0, 2, Sort.by("index")));
+    assertEquals(Arrays.asList(0, 3), getIndexes(firstPage));
+    assertTrue(firstPage.hasNext());
+    Slice<Widget> lastPage = dao.getAllAfter(3, PageRequest.of(0, 2, Sort.by("index")));
+    assertEquals(Arrays.asList(4, 5), getIndexes(lastPage));
+    assertFalse(lastPage.hasNext());
+    AreaFilter area = new AreaFilter(0, 0, 10, 10);
+    assertEquals(
+        Arrays.asList(4, 5),
+        getIndexes(dao.getAllAfter(3, PageRequest.of(0, 5, Sort.by("index")), area)));
+  }
+
+  @Test
+  void shouldPassAllWidgetsOrderedByIndex() {
+    for (int index : new int[] {5, -1, 3, 0, 4}) {
+      dao.add(getTestWidget(index));
+    }
+    List<Integer> indexes = new ArrayList<>();
+    dao.forEachOrdered(widget -> indexes.add(widget.getIndex()));
+    assertEquals(Arrays.asList(-1, 0, 3, 4, 5), indexes);
+  }
+
+  @Test
+  void shouldAddAndUpdateWidgetsOnSaveAll() {
+    long storedId = dao.add(getTestWidget(0));
+    Widget updatedWidget = dao.get(storedId);
+    updatedWidget.setIndex(1);
+    List<Long> ids = dao.saveAll(Arrays.asList(getTestWidget(0), updatedWidget, getTestWidget(2)));
+    assertEquals(3, ids.size());
+    assertEquals(storedId, ids.get(1));
+    assertEquals(Arrays.asList(0, 1, 2), getIndexes(dao.getAll(Sort.by("index"))));
+    assertEquals(1, dao.get(storedId).getIndex());
+  }
+
+  @Test
+  void shouldNotSaveAnyOnSaveAllWithAbsent() {
+    Widget absentWidget = getTestWidget(1);
+    absentWidget.setId(1000L);
+    assertThrows(
+        WidgetNotFoundException.class,
+        () -> dao.saveAll(Arrays.asList(getTestWidget(0), absentWidget)));
+    assertFalse(dao.getAll(Sort.by("index")).iterator().hasNext());
+  }
+
+  @Test
+  void shouldDeleteOnlySpecifiedOnDeleteAll() {
+    long first = dao.add(getTestWidget(0));
+    long second = dao.add(getTestWidget(1));
+    long third = dao.add(getTestWidget(2));
+    dao.deleteAll(Arrays.asList(first, third));
+    assertEquals(Arrays.asList(1), getIndexes(dao.getAll(Sort.by("index"))));
+    assertNotNull(dao.get(second));
+    assertThrows(WidgetNotFoundException.class, () -> dao.deleteAll(Arrays.asList(first)));
+  }
+
+  @Test
+  void shouldDeleteAndSaveOnApplyBatch() {
+    long deleted = dao.add(getTestWidget(0));
+    long updated = dao.add(getTestWidget(1));
+    Widget updatedWidget = dao.get(updated);
+    updatedWidget.setIndex(3);
+    List<Long> ids =
+        dao.applyBatch(
+            Collections.singletonList(deleted), Arrays.asList(updatedWidget, getTestWidget(2)));
+    assertEquals(updated, ids.get(0));
+    assertEquals(Arrays.asList(2, 3), getIndexes(dao.getAll(Sort.by("index"))));
+    assertThrows(WidgetNotFoundException.class, () -> dao.get(deleted));
+  }
+
+  @Test
+  void shouldNotDeleteAnyOnApplyBatchWithAbsent() {
+    long stored = dao.add(getTestWidget(0));
+    Widget absentWidget = getTestWidget(1);
+    absentWidget.setId(1000L);
+    assertThrows(
+        WidgetNotFoundException.class,
+        () ->
+            dao.applyBatch(
+                Collections.singletonList(stored), Collections.singletonList(absentWidget)));
+    assertEquals(0, dao.get(stored).getIndex());
+    assertEquals(1, dao.count());
+  }
+
+  @Test
+  void shouldKeepAllWidgetsOnConcurrentWrites() throws Exception {
+    int threads = 4;
+    int widgetsPerThread = 250;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<?>> writes = new ArrayList<>();
+      for (int thread = 0; thread < threads; thread++) {
+        int firstIndex = thread * widgetsPerThread;
+        writes.add(
+            executor.submit(
+                () -> {
+                  for (int index = firstIndex; index < firstIndex + widgetsPerThread; index++) {
+                    Widget widget = getTestWidget(index);
+                    widget.setId(dao.add(widget));
+                    widget.setX(index);
+                    dao.update(widget);
+                  }
+                }));
+      }
+      for (Future<?> write : writes) {
+        write.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+    int total = threads * widgetsPerThread;
+    assertEquals(total, dao.count());
+    assertEquals(total, dao.count(new AreaFilter(0, 0, total + 10, 10)));
+    assertEquals(
+        IntStream.range(0, total).boxed().collect(Collectors.toList()),
+        getIndexes(dao.getAll(Sort.by("index"))));
+  }
+
+  private List<Integer> getIndexes(Iterable<Widget> widgets) {
+    return StreamSupport.stream(widgets.spliterator(), false)
+        .map(Widget::getIndex)
+        .collect(Collectors.toList());
+  }
 }
@@ -1,11 +1,12 @@
 package com.levykin.widget.dao;
 
 import com.levykin.widget.dao.impl.JavaInMemoryWidgetDao;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 
 class JavaInMemoryDaoTest extends AbstractDaoTest {
 
   @Override
   protected WidgetDao getDao() {
-    return new JavaInMemoryWidgetDao();
+    return new JavaInMemoryWidgetDao(new SimpleMeterRegistry());
   }
 }
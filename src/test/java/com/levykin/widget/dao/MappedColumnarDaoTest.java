@@ -0,0 +1,83 @@
+package com.levykin.widget.dao;
+
+import com.levykin.widget.dao.impl.MappedColumnarWidgetDao;
+import com.levykin.widget.exception.WidgetNotFoundException;
+import com.levykin.widget.model.Widget;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class MappedColumnarDaoTest extends AbstractDaoTest {
+
+  @TempDir Path storeDirectory;
+
+  private final List<MappedColumnarWidgetDao> openedDaos = new ArrayList<>();
+
+  @Override
+  protected WidgetDao getDao() {
+    MappedColumnarWidgetDao dao = new MappedColumnarWidgetDao(new SimpleMeterRegistry());
+    ReflectionTestUtils.setField(dao, "directory", storeDirectory.toString());
+    ReflectionTestUtils.invokeMethod(dao, "open");
+    openedDaos.add(dao);
+    return dao;
+  }
+
+  @AfterEach
+  void closeDaos() {
+    openedDaos.forEach(dao -> ReflectionTestUtils.invokeMethod(dao, "close"));
+    openedDaos.clear();
+  }
+
+  @Test
+  void shouldRestoreWidgetsAfterReopen() {
+    WidgetDao dao = getDao();
+    long first = dao.add(getWidget(1));
+    long second = dao.add(getWidget(2));
+    long third = dao.add(getWidget(3));
+    dao.shiftIndexes(1, 3);
+    dao.delete(second);
+    closeDaos();
+
+    WidgetDao reopenedDao = getDao();
+    assertEquals(2, reopenedDao.get(first).getIndex());
+    assertEquals(3, reopenedDao.get(third).getIndex());
+    assertThrows(WidgetNotFoundException.class, () -> reopenedDao.get(second));
+    assertEquals(2, reopenedDao.count());
+    assertEquals(third + 1, reopenedDao.add(getWidget(4)));
+  }
+
+  @Test
+  void shouldMapIdsOfTakenSlotsAgainAfterReopen() throws IOException {
+    WidgetDao dao = getDao();
+    long first = dao.add(getWidget(1));
+    long second = dao.add(getWidget(2));
+    closeDaos();
+    // As if the store crashed right after the slots were taken, before their ids were mapped
+    Files.write(storeDirectory.resolve("ids"), new byte[0]);
+
+    WidgetDao reopenedDao = getDao();
+    assertEquals(1, reopenedDao.get(first).getIndex());
+    assertEquals(2, reopenedDao.get(second).getIndex());
+  }
+
+  private static Widget getWidget(int index) {
+    Widget widget = new Widget();
+    widget.setX(1);
+    widget.setY(1);
+    widget.setWidth(10f);
+    widget.setHeight(10f);
+    widget.setIndex(index);
+    return widget;
+  }
+}
@@ -0,0 +1,168 @@
+package com.levykin.widget.dao.impl;
+
+import com.levykin.widget.exception.WidgetNotFoundException;
+import com.levykin.widget.model.Widget;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class JavaInMemoryDaoJournalTest {
+
+  @TempDir Path journalDirectory;
+
+  @Test
+  void shouldRestoreWidgetsAfterRestart() {
+    JavaInMemoryWidgetDao dao = openDao();
+    long first = dao.add(getTestWidget(1));
+    long second = dao.add(getTestWidget(2));
+    long third = dao.add(getTestWidget(3));
+    dao.shiftIndexes(1, 3);
+    dao.delete(second);
+    dao.closeJournal();
+
+    JavaInMemoryWidgetDao restoredDao = openDao();
+    assertEquals(2, restoredDao.get(first).getIndex());
+    assertEquals(3, restoredDao.get(third).getIndex());
+    assertThrows(WidgetNotFoundException.class, () -> restoredDao.get(second));
+    assertEquals(third + 1, restoredDao.add(getTestWidget(4)));
+    restoredDao.closeJournal();
+  }
+
+  @Test
+  void shouldReplayLogWrittenBeforeCrash() {
+    JavaInMemoryWidgetDao dao = openDao();
+    long id = dao.add(getTestWidget(1));
+    Widget widget = dao.get(id);
+    widget.setIndex(5);
+    dao.update(widget);
+    dao.syncJournal();
+    // No snapshot on exit, only the synced log
+    dao.abandonJournal();
+
+    JavaInMemoryWidgetDao restoredDao = openDao();
+    assertEquals(5, restoredDao.get(id).getIndex());
+    restoredDao.closeJournal();
+  }
+
+  @Test
+  void shouldReplayLogOfSegmentStartedBySnapshot() {
+    JavaInMemoryWidgetDao dao = openDao();
+    long first = dao.add(getTestWidget(1));
+    dao.takeSnapshot();
+    long second = dao.add(getTestWidget(2));
+    dao.shiftIndexes(1, 3);
+    dao.syncJournal();
+    dao.abandonJournal();
+
+    JavaInMemoryWidgetDao restoredDao = openDao();
+    assertEquals(2, restoredDao.get(first).getIndex());
+    assertEquals(3, restoredDao.get(second).getIndex());
+    restoredDao.closeJournal();
+  }
+
+  @Test
+  void shouldKeepChangesOfFailedFlushInLog() {
+    List<FileChannel> openedLogs = new ArrayList<>();
+    AtomicBoolean diskFailing = new AtomicBoolean();
+    WidgetJournal journal =
+        new WidgetJournal(journalDirectory) {
+          @Override
+          FileChannel openLog(Path path, boolean existing) throws IOException {
+            if (diskFailing.get()) {
+              throw new IOException("Disk failure");
+            }
+            FileChannel log = super.openLog(path, existing);
+            openedLogs.add(log);
+            return log;
+          }
+        };
+    journal.recover(new RecordingReplay());
+    journal.logStore(getTestSnapshot(1L, 1));
+    journal.flush();
+    // Flushes fail while the closed log can not be opened again
+    diskFailing.set(true);
+    closeLast(openedLogs);
+    journal.logStore(getTestSnapshot(2L, 2));
+    journal.logShift(1, 3);
+    assertThrows(UncheckedIOException.class, journal::flush);
+    diskFailing.set(false);
+    journal.logStore(getTestSnapshot(3L, 5));
+    journal.flush();
+    journal.abandon();
+
+    RecordingReplay replay = new RecordingReplay();
+    WidgetJournal recoveredJournal = new WidgetJournal(journalDirectory);
+    recoveredJournal.recover(replay);
+    recoveredJournal.abandon();
+    assertEquals(2, replay.indexes.get(1L));
+    assertEquals(3, replay.indexes.get(2L));
+    assertEquals(5, replay.indexes.get(3L));
+  }
+
+  private JavaInMemoryWidgetDao openDao() {
+    JavaInMemoryWidgetDao dao = new JavaInMemoryWidgetDao(new SimpleMeterRegistry());
+    ReflectionTestUtils.setField(dao, "journalDirectory", journalDirectory.toString());
+    // The log is synced by the tests only
+    ReflectionTestUtils.setField(dao, "journalSyncInterval", 60_000L);
+    ReflectionTestUtils.setField(dao, "journalSnapshotInterval", 300L);
+    dao.openJournal();
+    return dao;
+  }
+
+  private static void closeLast(List<FileChannel> logs) {
+    try {
+      logs.get(logs.size() - 1).close();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static WidgetSnapshot getTestSnapshot(long id, int index) {
+    return WidgetSnapshot.of(id, getTestWidget(index));
+  }
+
+  private static Widget getTestWidget(int index) {
+    Widget widget = new Widget();
+    widget.setX(1);
+    widget.setY(2);
+    widget.setIndex(index);
+    widget.setWidth(4.0f);
+    widget.setHeight(5.0f);
+    return widget;
+  }
+
+  // Keeps the index of every widget, as the store would
+  private static class RecordingReplay implements WidgetJournal.Replay {
+
+    private final Map<Long, Integer> indexes = new HashMap<>();
+
+    @Override
+    public void store(WidgetSnapshot widget) {
+      indexes.put(widget.getId(), widget.getIndex());
+    }
+
+    @Override
+    public void delete(long id) {
+      indexes.remove(id);
+    }
+
+    @Override
+    public void shift(int fromIndex, int toIndex) {
+      indexes.replaceAll((id, index) -> index >= fromIndex && index < toIndex ? index + 1 : index);
+    }
+  }
+}
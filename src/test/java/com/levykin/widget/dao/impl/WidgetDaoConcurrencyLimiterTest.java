@@ -0,0 +1,55 @@
+package com.levykin.widget.dao.impl;
+
+import com.levykin.widget.dao.WidgetDao;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class WidgetDaoConcurrencyLimiterTest {
+
+  private static final int MAX_CONCURRENT_CALLS = 3;
+
+  @Test
+  void shouldLetOnlyMaxConcurrentCallsIntoDao() throws Exception {
+    AtomicInteger concurrentCalls = new AtomicInteger();
+    AtomicInteger maxSeenCalls = new AtomicInteger();
+    WidgetDao slowDao =
+        (WidgetDao)
+            Proxy.newProxyInstance(
+                WidgetDao.class.getClassLoader(),
+                new Class<?>[] {WidgetDao.class},
+                (proxy, method, args) -> {
+                  maxSeenCalls.accumulateAndGet(concurrentCalls.incrementAndGet(), Math::max);
+                  Thread.sleep(50);
+                  concurrentCalls.decrementAndGet();
+                  return 0L;
+                });
+    WidgetDao dao =
+        (WidgetDao)
+            new WidgetDaoConcurrencyLimiter(MAX_CONCURRENT_CALLS, new SimpleMeterRegistry())
+                .postProcessAfterInitialization(slowDao, "widgetDao");
+
+    ExecutorService executor = Executors.newFixedThreadPool(4 * MAX_CONCURRENT_CALLS);
+    try {
+      List<Future<Long>> counts = new ArrayList<>();
+      for (int i = 0; i < 4 * MAX_CONCURRENT_CALLS; i++) {
+        counts.add(executor.submit(() -> dao.count()));
+      }
+      for (Future<Long> count : counts) {
+        assertEquals(0L, count.get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+    assertEquals(MAX_CONCURRENT_CALLS, maxSeenCalls.get());
+  }
+}
@@ -0,0 +1,158 @@
+package com.levykin.widget.service;
+
+import com.levykin.widget.model.Widget;
+import com.levykin.widget.model.WidgetChange;
+import com.levykin.widget.service.impl.WidgetChangeFeed;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WidgetChangeFeedTest {
+
+  private static final int BUFFER_SIZE = 8;
+
+  private final WidgetChangeFeed feed = new WidgetChangeFeed(BUFFER_SIZE, 2);
+
+  @AfterEach
+  void closeFeed() {
+    ReflectionTestUtils.invokeMethod(feed, "close");
+  }
+
+  @Test
+  void shouldDeliverChangesInOrderOfSequenceNumbers() throws InterruptedException {
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    feed.subscribe(null, subscriber);
+    Widget widget = new Widget();
+    widget.setId(1L);
+    widget.setIndex(5);
+    feed.created(1L, widget);
+    feed.shifted(5, 7);
+    feed.updated(widget);
+    feed.deleted(1L);
+    feed.spread(0, 10);
+
+    List<WidgetChange> changes = subscriber.take(5);
+    assertEquals(WidgetChange.Type.CREATE, changes.get(0).getType());
+    assertEquals(5, changes.get(0).getWidget().getIndex());
+    assertEquals(WidgetChange.Type.SHIFT, changes.get(1).getType());
+    assertEquals(7, changes.get(1).getToIndex());
+    assertEquals(WidgetChange.Type.UPDATE, changes.get(2).getType());
+    assertEquals(WidgetChange.Type.DELETE, changes.get(3).getType());
+    assertNull(changes.get(3).getWidget());
+    assertEquals(WidgetChange.Type.SPREAD, changes.get(4).getType());
+    assertEquals(10, changes.get(4).getStep());
+    for (int i = 1; i < changes.size(); i++) {
+      assertEquals(changes.get(i - 1).getSequence() + 1, changes.get(i).getSequence());
+    }
+  }
+
+  @Test
+  void shouldResumeAfterGivenSequenceNumber() throws InterruptedException {
+    RecordingSubscriber first = new RecordingSubscriber();
+    feed.subscribe(null, first);
+    for (long id = 1; id <= 3; id++) {
+      feed.deleted(id);
+    }
+    List<WidgetChange> changes = first.take(3);
+
+    RecordingSubscriber resumed = new RecordingSubscriber();
+    feed.subscribe(changes.get(0).getSequence(), resumed);
+    List<WidgetChange> resumedChanges = resumed.take(2);
+    assertEquals(2L, resumedChanges.get(0).getId());
+    assertEquals(3L, resumedChanges.get(1).getId());
+  }
+
+  @Test
+  void shouldReportOverflowWhenChangesAreNotInBuffer() throws InterruptedException {
+    RecordingSubscriber first = new RecordingSubscriber();
+    feed.subscribe(null, first);
+    feed.deleted(1L);
+    long sequence = first.take(1).get(0).getSequence();
+    for (long id = 2; id <= BUFFER_SIZE + 1; id++) {
+      feed.deleted(id);
+    }
+    first.take(BUFFER_SIZE);
+
+    RecordingSubscriber late = new RecordingSubscriber();
+    feed.subscribe(sequence - 1, late);
+    assertTrue(late.overflows.poll(5, TimeUnit.SECONDS));
+
+    RecordingSubscriber ahead = new RecordingSubscriber();
+    feed.subscribe(sequence + BUFFER_SIZE + 1, ahead);
+    assertTrue(ahead.overflows.poll(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  void shouldReportOverflowBeforeFirstSequenceNumber() throws InterruptedException {
+    RecordingSubscriber first = new RecordingSubscriber();
+    feed.subscribe(null, first);
+    feed.deleted(1L);
+    long firstSequence = first.take(1).get(0).getSequence();
+
+    RecordingSubscriber early = new RecordingSubscriber();
+    feed.subscribe(firstSequence - 3, early);
+    assertTrue(early.overflows.poll(5, TimeUnit.SECONDS));
+    assertTrue(early.drops.isEmpty());
+  }
+
+  @Test
+  void shouldTellDroppedSubscriber() throws InterruptedException {
+    RecordingSubscriber failing =
+        new RecordingSubscriber() {
+          @Override
+          public void onChange(WidgetChange change) {
+            throw new IllegalStateException("Closed");
+          }
+        };
+    feed.subscribe(null, failing);
+    feed.deleted(1L);
+    assertNotNull(failing.drops.poll(5, TimeUnit.SECONDS));
+  }
+
+  private static class RecordingSubscriber implements WidgetChangeSubscriber {
+
+    private final BlockingQueue<WidgetChange> changes = new LinkedBlockingQueue<>();
+
+    private final BlockingQueue<Boolean> overflows = new LinkedBlockingQueue<>();
+
+    private final BlockingQueue<Exception> drops = new LinkedBlockingQueue<>();
+
+    @Override
+    public void onChange(WidgetChange change) {
+      changes.add(change);
+    }
+
+    @Override
+    public void onOverflow() {
+      overflows.add(true);
+    }
+
+    @Override
+    public void onDropped(Exception e) {
+      drops.add(e);
+    }
+
+    private List<WidgetChange> take(int count) throws InterruptedException {
+      List<WidgetChange> taken = new ArrayList<>();
+      for (int i = 0; i < count; i++) {
+        WidgetChange change = changes.poll(5, TimeUnit.SECONDS);
+        if (change == null) {
+          throw new AssertionError("Only " + i + " of " + count + " changes are delivered");
+        }
+        taken.add(change);
+      }
+      return taken;
+    }
+  }
+}
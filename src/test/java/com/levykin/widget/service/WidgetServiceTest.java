@@ -3,34 +3,35 @@ package com.levykin.widget.service;
 import com.levykin.widget.dao.WidgetDao;
 import com.levykin.widget.model.AreaFilter;
 import com.levykin.widget.model.Widget;
+import com.levykin.widget.service.impl.WidgetChangeFeed;
 import com.levykin.widget.service.impl.WidgetServiceImpl;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
-import org.mockito.stubbing.Answer;
 import org.springframework.data.domain.PageImpl;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
 import org.springframework.test.util.ReflectionTestUtils;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
+import java.util.OptionalInt;
+import java.util.Set;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 import static com.levykin.widget.service.WidgetService.SORT_BY_INDEX;
-import static com.levykin.widget.service.WidgetService.SORT_BY_INDEX_DESC;
-import static java.util.Arrays.asList;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.mockito.ArgumentMatchers.any;
-import static org.mockito.Mockito.mock;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -43,14 +44,19 @@ class WidgetServiceTest {
 
   @Mock private WidgetDao dao;
 
+  private SimpleMeterRegistry registry;
+
   private WidgetService service;
 
   @BeforeEach
   private void initService() {
-    service = new WidgetServiceImpl();
+    registry = new SimpleMeterRegistry();
+    service = new WidgetServiceImpl(registry);
     ReflectionTestUtils.setField(service, "dao", dao);
+    ReflectionTestUtils.setField(service, "changeFeed", new WidgetChangeFeed(16, 1));
     ReflectionTestUtils.setField(service, "maxPageSize", TEST_PAGE_SIZE);
     ReflectionTestUtils.setField(service, "defaultPageSize", TEST_PAGE_SIZE);
+    ReflectionTestUtils.setField(service, "indexStep", 1);
   }
 
   @Test
@@ -63,6 +69,15 @@ class WidgetServiceTest {
     assertEquals(0, pageable.getPageNumber());
   }
 
+  @Test
+  void shouldRequestWidgetsAfterCursorWithLimitedSize() {
+    service.getAllAfter(5, TEST_PAGE_SIZE * 2, null);
+    ArgumentCaptor<Pageable> pageableCaptor = ArgumentCaptor.forClass(Pageable.class);
+    verify(dao).getAllAfter(eq(5), pageableCaptor.capture());
+    assertEquals(TEST_PAGE_SIZE, pageableCaptor.getValue().getPageSize());
+    assertEquals(SORT_BY_INDEX, pageableCaptor.getValue().getSort());
+  }
+
   @Test
   void shouldFillModificationDateAndIndexAfterCreation() {
     service.create(new Widget());
@@ -84,15 +99,15 @@ class WidgetServiceTest {
   }
 
   @Test
-  void shouldReturnOnlyMatchedWhenUsesArea() {
-    mock10Widgets();
-    AreaFilter area = mock(AreaFilter.class);
-    // Match only with even indexes
-    Answer<Boolean> answer = invocation -> ((Widget) invocation.getArgument(0)).getId() % 2 == 0;
-    when(area.match(any(Widget.class))).thenAnswer(answer);
-    assertEquals(asList(2L, 4L), getAllWidgetIdOnPage(0, area));
-    assertEquals(asList(6L, 8L), getAllWidgetIdOnPage(1, area));
-    assertEquals(Collections.singletonList(10L), getAllWidgetIdOnPage(2, area));
+  void shouldRequestAreaPageSortedByIndex() {
+    AreaFilter area = new AreaFilter(0, 0, 1, 1);
+    service.getAll(PageRequest.of(2, TEST_PAGE_SIZE * 2), area);
+    ArgumentCaptor<Pageable> pageableCaptor = ArgumentCaptor.forClass(Pageable.class);
+    verify(dao).getAll(pageableCaptor.capture(), eq(area));
+    Pageable pageable = pageableCaptor.getValue();
+    assertEquals(SORT_BY_INDEX, pageable.getSort());
+    assertEquals(2, pageable.getPageNumber());
+    assertEquals(TEST_PAGE_SIZE, pageable.getPageSize());
   }
 
   @Test
@@ -101,13 +116,18 @@ class WidgetServiceTest {
     Widget widget = createWidget(0);
     service.create(widget);
     verify(dao).add(widget);
-    ArgumentCaptor<Widget> widgetCaptor = ArgumentCaptor.forClass(Widget.class);
-    verify(dao, times(10)).update(widgetCaptor.capture());
-    List<Widget> updatedWidgets = widgetCaptor.getAllValues();
-    updatedWidgets.sort(Comparator.comparingInt(Widget::getIndex));
-    for (int i = 0; i < updatedWidgets.size(); i++) {
-      assertEquals(i + 1, updatedWidgets.get(i).getIndex());
-    }
+    verify(dao).shiftIndexes(0, 10);
+    verify(dao, never()).update(any(Widget.class));
+  }
+
+  @Test
+  void shouldRecordNumberOfShiftedWidgets() {
+    mock10Widgets();
+    service.create(createWidget(4));
+    DistributionSummary shifted = registry.find("widget.index.shifted").summary();
+    assertNotNull(shifted);
+    assertEquals(1, shifted.count());
+    assertEquals(6, shifted.totalAmount());
   }
 
   @Test
@@ -116,7 +136,7 @@ class WidgetServiceTest {
     Widget widget = createWidget(10);
     service.create(widget);
     verify(dao).add(widget);
-    verify(dao, never()).update(any(Widget.class));
+    verify(dao, never()).shiftIndexes(anyInt(), anyInt());
   }
 
   @Test
@@ -137,12 +157,7 @@ class WidgetServiceTest {
     service.create(createWidget(1));
     mockDaoWidgets(Arrays.asList(createWidget(1, -1), createWidget(2, 0)));
     service.create(createWidget(-1));
-    ArgumentCaptor<Widget> widgetCaptor = ArgumentCaptor.forClass(Widget.class);
-    verify(dao, times(2)).update(widgetCaptor.capture());
-    List<Widget> updatedWidgets = widgetCaptor.getAllValues();
-    updatedWidgets.sort(Comparator.comparingInt(Widget::getIndex));
-    assertEquals(0, updatedWidgets.get(0).getIndex());
-    assertEquals(1, updatedWidgets.get(1).getIndex());
+    verify(dao).shiftIndexes(-1, 1);
   }
 
   @Test
@@ -154,13 +169,12 @@ class WidgetServiceTest {
     mockDaoWidgets(widgets);
     when(dao.get(2)).thenReturn(widgets.get(1));
     service.update(createWidget(2, 0));
+    // The widget with id 1 moves to the released index of the updated one
+    verify(dao).shiftIndexes(0, 1);
     ArgumentCaptor<Widget> widgetCaptor = ArgumentCaptor.forClass(Widget.class);
-    verify(dao, times(2)).update(widgetCaptor.capture());
-    List<Widget> updatedWidgets = widgetCaptor.getAllValues();
-    assertEquals(1, updatedWidgets.get(0).getId());
-    assertEquals(1, updatedWidgets.get(0).getIndex());
-    assertEquals(2, updatedWidgets.get(1).getId());
-    assertEquals(0, updatedWidgets.get(1).getIndex());
+    verify(dao).update(widgetCaptor.capture());
+    assertEquals(2, widgetCaptor.getValue().getId());
+    assertEquals(0, widgetCaptor.getValue().getIndex());
   }
 
   @Test
@@ -171,19 +185,13 @@ class WidgetServiceTest {
     List<Widget> widgets = Arrays.asList(createWidget(1, 0), createWidget(2, 1));
     mockDaoWidgets(widgets);
     service.update(widgets.get(1));
+    verify(dao, never()).shiftIndexes(anyInt(), anyInt());
     ArgumentCaptor<Widget> widgetCaptor = ArgumentCaptor.forClass(Widget.class);
     verify(dao).update(widgetCaptor.capture());
     assertEquals(2, widgetCaptor.getValue().getId());
     assertEquals(1, widgetCaptor.getValue().getIndex());
   }
 
-  private List<Long> getAllWidgetIdOnPage(int page, AreaFilter area) {
-    Pageable pageable = PageRequest.of(page, 2);
-    return service.getAll(pageable, area).getContent().stream()
-        .map(Widget::getId)
-        .collect(Collectors.toList());
-  }
-
   private Widget createWidget(int index) {
     Widget widget = new Widget();
     widget.setIndex(index);
@@ -201,14 +209,23 @@ class WidgetServiceTest {
   }
 
   private void mockDaoWidgets(List<Widget> widgets) {
-    ArrayList<Widget> reversedWidgets = new ArrayList<>(widgets);
-    Collections.reverse(reversedWidgets);
     when(dao.getAll(SORT_BY_INDEX)).thenReturn(widgets);
-    when(dao.getAll(SORT_BY_INDEX_DESC)).thenReturn(reversedWidgets);
+    when(dao.maxIndex()).thenReturn(OptionalInt.of(widgets.get(widgets.size() - 1).getIndex()));
+    when(dao.findFreeIndex(anyInt()))
+        .thenAnswer(invocation -> findFreeIndex(widgets, invocation.getArgument(0)));
     when(dao.getAll(any(Pageable.class))).thenReturn(new PageImpl<>(widgets));
     widgets.forEach(widget -> when(dao.get(widget.getId())).thenReturn(widget));
   }
 
+  private int findFreeIndex(List<Widget> widgets, int fromIndex) {
+    Set<Integer> indexes = widgets.stream().map(Widget::getIndex).collect(Collectors.toSet());
+    int freeIndex = fromIndex;
+    while (indexes.contains(freeIndex)) {
+      freeIndex++;
+    }
+    return freeIndex;
+  }
+
   private void mock10Widgets() {
     List<Widget> widgets =
         IntStream.range(0, 10)
@@ -0,0 +1,151 @@
+package com.levykin.widget.service.impl;
+
+import com.levykin.widget.dao.WidgetDao;
+import com.levykin.widget.dao.impl.JavaInMemoryWidgetDao;
+import com.levykin.widget.exception.WidgetNotFoundException;
+import com.levykin.widget.model.Widget;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.domain.Sort;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class WidgetBatchPlanTest {
+
+  private final AtomicInteger fullReads = new AtomicInteger();
+
+  private WidgetDao dao;
+
+  @BeforeEach
+  void initDao() {
+    dao =
+        new JavaInMemoryWidgetDao(new SimpleMeterRegistry()) {
+          @Override
+          public Iterable<Widget> getAll(Sort sort) {
+            fullReads.incrementAndGet();
+            return super.getAll(sort);
+          }
+        };
+  }
+
+  @Test
+  void shouldShiftWidgetsUpToGapOnly() {
+    long first = dao.add(createWidget(1));
+    long second = dao.add(createWidget(2));
+    long third = dao.add(createWidget(3));
+    long fifth = dao.add(createWidget(5));
+    WidgetBatchPlan plan = new WidgetBatchPlan(dao, 1, 64);
+    plan.create(createWidget(2));
+
+    Map<Long, Integer> indexes = getIndexesById(plan.getChangedWidgets());
+    assertEquals(3, indexes.size());
+    assertEquals(2, indexes.get(null));
+    assertEquals(3, indexes.get(second));
+    assertEquals(4, indexes.get(third));
+    assertNull(indexes.get(first));
+    assertNull(indexes.get(fifth));
+    assertEquals(0, fullReads.get());
+  }
+
+  @Test
+  void shouldShiftRunLongerThanLoadedPage() {
+    for (int index = 1; index <= 300; index++) {
+      dao.add(createWidget(index));
+    }
+    long top = dao.add(createWidget(400));
+    WidgetBatchPlan plan = new WidgetBatchPlan(dao, 1, 64);
+    plan.create(createWidget(200));
+    plan.create(createWidget(1));
+
+    Map<Integer, Long> idsByIndex =
+        plan.getChangedWidgets().stream()
+            .filter(widget -> widget.getId() != null)
+            .collect(Collectors.toMap(Widget::getIndex, Widget::getId));
+    assertEquals(300, idsByIndex.size());
+    assertEquals(2, idsByIndex.keySet().stream().mapToInt(Integer::intValue).min().getAsInt());
+    assertEquals(302, idsByIndex.keySet().stream().mapToInt(Integer::intValue).max().getAsInt());
+    assertFalse(idsByIndex.containsValue(top));
+    assertEquals(0, fullReads.get());
+  }
+
+  @Test
+  void shouldStopShiftingAtReleasedIndexOfUpdatedWidget() {
+    long first = dao.add(createWidget(1));
+    long second = dao.add(createWidget(2));
+    long third = dao.add(createWidget(3));
+    WidgetBatchPlan plan = new WidgetBatchPlan(dao, 1, 64);
+    Widget update = createWidget(1);
+    update.setId(third);
+    plan.update(update);
+
+    Map<Long, Integer> indexes = getIndexesById(plan.getChangedWidgets());
+    assertEquals(1, indexes.get(third));
+    assertEquals(2, indexes.get(first));
+    assertEquals(3, indexes.get(second));
+  }
+
+  @Test
+  void shouldSpreadIndexesOfRunLongerThanThreshold() {
+    long first = dao.add(createWidget(1));
+    long second = dao.add(createWidget(2));
+    long third = dao.add(createWidget(3));
+    long fourth = dao.add(createWidget(4));
+    WidgetBatchPlan plan = new WidgetBatchPlan(dao, 10, 2);
+    plan.create(createWidget(2));
+
+    Map<Long, Integer> indexes = getIndexesById(plan.getChangedWidgets());
+    assertEquals(1, indexes.get(first));
+    assertEquals(11, indexes.get(null));
+    assertEquals(12, indexes.get(second));
+    assertEquals(21, indexes.get(third));
+    assertEquals(31, indexes.get(fourth));
+  }
+
+  @Test
+  void shouldTreatIndexOfDeletedWidgetAsGap() {
+    dao.add(createWidget(1));
+    long second = dao.add(createWidget(2));
+    long third = dao.add(createWidget(3));
+    WidgetBatchPlan plan = new WidgetBatchPlan(dao, 1, 64);
+    plan.delete(second);
+    plan.create(createWidget(1));
+
+    Map<Long, Integer> indexes = getIndexesById(plan.getChangedWidgets());
+    assertEquals(2, indexes.size());
+    assertEquals(1, indexes.get(null));
+    assertNull(indexes.get(third));
+    assertThrows(WidgetNotFoundException.class, () -> plan.delete(second));
+  }
+
+  @Test
+  void shouldNotChangeStoredWidgets() {
+    long id = dao.add(createWidget(1));
+    WidgetBatchPlan plan = new WidgetBatchPlan(dao, 1, 64);
+    plan.create(createWidget(1));
+    assertEquals(1, dao.get(id).getIndex());
+  }
+
+  private static Map<Long, Integer> getIndexesById(List<Widget> widgets) {
+    // Only one created widget per test, under the null id
+    return widgets.stream().collect(Collectors.toMap(Widget::getId, Widget::getIndex));
+  }
+
+  private static Widget createWidget(int index) {
+    Widget widget = new Widget();
+    widget.setX(1);
+    widget.setY(2);
+    widget.setIndex(index);
+    widget.setWidth(4.0f);
+    widget.setHeight(5.0f);
+    return widget;
+  }
+}